@@ -0,0 +1,74 @@
+package websocket;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JSON handling of the websocket factory with org.json (as it was) and with {@link ChatFrameCodec}: a
+ * delivered message is encoded, an inbound chat frame is decoded and its confirmation encoded.
+ *
+ * mvn -P benchmark package && java -jar target/benchmarks.jar FrameCodecBenchmark -prof gc
+ * (-prof gc adds the bytes allocated per frame, "gc.alloc.rate.norm")
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    private static final String SENDER = "userA";
+    private static final String DEST = "userB";
+    private static final String LOREM_IPSUM
+            = "Neque porro quisquam est qui dolorem ipsum quia dolor sit amet, consectetur, adipisci velit";
+
+    private final String inbound = "{\"type\":\"chat\",\"sender\":\"" + SENDER + "\",\"dest\":\"" + DEST
+            + "\",\"msg\":\"" + LOREM_IPSUM + "\"}";
+    private long timestamp;
+
+    @Benchmark
+    public String deliveryJson() {
+        JSONObject obj = new JSONObject();
+        obj.put("type", "chat");
+        obj.put("sender", SENDER);
+        obj.put("dest", DEST);
+        obj.put("message", LOREM_IPSUM);
+        obj.put("timestamp", timestamp++);
+        return obj.toString();
+    }
+
+    @Benchmark
+    public String deliveryCodec() {
+        return ChatFrameCodec.chat(SENDER, DEST, LOREM_IPSUM, timestamp++);
+    }
+
+    @Benchmark
+    public String inboundJson() {
+        JSONObject message = new JSONObject(inbound);
+        if (!"chat".equals(message.getString("type")) || !message.has("msg"))
+            throw new IllegalStateException();
+        JSONObject answer = new JSONObject();
+        answer.put("type", "confirmation");
+        answer.put("additional_message", message.toString());
+        return answer.toString();
+    }
+
+    @Benchmark
+    public String inboundCodec() {
+        ChatFrameCodec.Frame message = ChatFrameCodec.decode(inbound);
+        if (!"chat".equals(message.type) || message.msg == null)
+            throw new IllegalStateException();
+        return ChatFrameCodec.confirmation(inbound);
+    }
+}
@@ -0,0 +1,82 @@
+package websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads pages of a long conversation of the {@link HistoryStore} ("the last 50 messages", then "the 50 messages before"
+ * random times) and appends messages to another one. No ZooKeeper needed.
+ *
+ * mvn -P benchmark package && java -jar target/benchmarks.jar HistoryStoreBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryStoreBenchmark {
+
+    private static final String SENDER = "userA";
+    private static final String RECEIVER = "userB";
+    private static final String LOREM_IPSUM
+            = "Neque porro quisquam est qui dolorem ipsum quia dolor sit amet, consectetur, adipisci velit";
+
+    // the length of the conversation read
+    @Param("2000000")
+    private int messages;
+
+    private File directory;
+    private HistoryStore history;
+    private final Random random = new Random(0);
+    private long appended;
+
+    @Setup(Level.Trial)
+    public void fill() throws IOException {
+        directory = Files.createTempDirectory("history").toFile();
+        history = new HistoryStore(directory);
+        for (int i = 0; i < messages; i++)
+            history.append(SENDER, RECEIVER, i % 2 == 0 ? SENDER : RECEIVER, i, i + ": " + LOREM_IPSUM);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        history.close();
+        Files.walk(directory.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Benchmark
+    public HistoryStore.Page lastPage() {
+        return history.before(SENDER, RECEIVER, Long.MAX_VALUE, HistoryStore.DEFAULT_PAGE_SIZE);
+    }
+
+    @Benchmark
+    public HistoryStore.Page pageBeforeRandomTime() {
+        return history.before(RECEIVER, SENDER, random.nextInt(messages), HistoryStore.DEFAULT_PAGE_SIZE);
+    }
+
+    @Benchmark
+    public void append() {
+        long timestamp = appended++;
+        history.append(SENDER, "userC", SENDER, timestamp, timestamp + ": " + LOREM_IPSUM);
+    }
+}
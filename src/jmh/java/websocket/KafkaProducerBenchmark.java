@@ -0,0 +1,113 @@
+package websocket;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares one Kafka producer per session (as the Kafka workers had) with the producer shared by the factory
+ * ({@link KafkaMessageProducer}): heap and threads used by the producers of the given number of sessions, then (if the
+ * broker is up) the time to have the given number of messages, sent round-robin by the sessions, acknowledged.
+ *
+ * Not a JMH benchmark (it counts the heap and the threads of many producers):
+ * mvn -P benchmark package && java -cp target/benchmarks.jar websocket.KafkaProducerBenchmark 1000 200000
+ */
+public class KafkaProducerBenchmark {
+
+    private static final String USER = "user";
+    private static final String LOREM_IPSUM
+            = "Neque porro quisquam est qui dolorem ipsum quia dolor sit amet, consectetur, adipisci velit";
+
+    public static void main(String[] args) {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        boolean brokerUp;
+        String[] server = KafkaConsumerEngine.SERVERS.split(",")[0].split(":");
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(server[0], Integer.parseInt(server[1])), 1000);
+            brokerUp = true;
+        } catch (IOException e) {
+            brokerUp = false;
+        }
+
+        System.out.println("===================================================================================");
+        long initHeap = usedHeap();
+        int initThreads = Thread.activeCount();
+        List<KafkaProducer<String, String>> producers = new ArrayList<>();
+        Properties properties = new Properties();
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, KafkaConsumerEngine.SERVERS);
+        properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringSerializer");
+        properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringSerializer");
+        for (int i = 0; i < sessions; i++)
+            producers.add(new KafkaProducer<>(properties));
+        System.out.println("One producer per session (" + sessions + "): " + (usedHeap() - initHeap) / 1024 + "KB of heap, "
+                + (Thread.activeCount() - initThreads) + " threads");
+
+        if (brokerUp) {
+            CountDownLatch acknowledged = new CountDownLatch(messages);
+            AtomicInteger failed = new AtomicInteger();
+            long initTime = System.nanoTime();
+            for (int i = 0; i < messages; i++)
+                producers.get(i % sessions).send(new ProducerRecord<>(KafkaConsumerEngine.TOPIC, USER + (i % sessions),
+                        USER + ":" + LOREM_IPSUM), (metadata, exception) -> {
+                    if (exception != null) failed.incrementAndGet();
+                    acknowledged.countDown();
+                });
+            awaitAcknowledged(acknowledged, failed, initTime, messages);
+        }
+        for (KafkaProducer<String, String> producer : producers) producer.close();
+        producers.clear();
+
+        initHeap = usedHeap();
+        initThreads = Thread.activeCount();
+        KafkaMessageProducer shared = new KafkaMessageProducer();
+        System.out.println("Shared producer: " + (usedHeap() - initHeap) / 1024 + "KB of heap, "
+                + (Thread.activeCount() - initThreads) + " threads");
+
+        if (brokerUp) {
+            CountDownLatch acknowledged = new CountDownLatch(messages);
+            AtomicInteger failed = new AtomicInteger();
+            long initTime = System.nanoTime();
+            for (int i = 0; i < messages; i++)
+                shared.send(USER, USER + (i % sessions), LOREM_IPSUM).whenComplete((metadata, error) -> {
+                    if (error != null) failed.incrementAndGet();
+                    acknowledged.countDown();
+                });
+            awaitAcknowledged(acknowledged, failed, initTime, messages);
+        } else {
+            System.out.println("No broker at " + KafkaConsumerEngine.SERVERS + ": throughput not measured");
+        }
+        shared.close();
+    }
+
+    // The latch counts the sends completed, acknowledged or failed
+    private static void awaitAcknowledged(CountDownLatch completed, AtomicInteger failed, long initTime, int messages) {
+        try {
+            completed.await(5, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long time = System.nanoTime() - initTime;
+        int acknowledged = messages - (int) completed.getCount() - failed.get();
+        System.out.println("  " + acknowledged + " messages acknowledged in " + time / 1000000 + "ms ("
+                + acknowledged * 1000000000L / Math.max(1, time) + " msg/s), " + failed.get() + " failed, "
+                + completed.getCount() + " not completed");
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,161 @@
+package com.company;
+
+import org.apache.zookeeper.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipelined send path of a worker, built on the asynchronous API of ZooKeeper.
+ * Every message is sent as a multi() transaction made of a check on "/online/ID" (the same check done by
+ * {@link Worker#write(String, String)}) and the create of the message in the inbox of the receiver. The caller does not
+ * wait for the transaction: it gets a future completed by the ZooKeeper callback instead.
+ * A send can still block in two cases:
+ * - the number of messages in flight is bounded: once the window is full, senders wait for a free slot (backpressure)
+ *   and give up after ACQUIRE_TIMEOUT_MILLIS;
+ * - the layout of the inbox of a receiver (see {@link InboxLayout}) is read synchronously the first time, or after a
+ *   failed send dropped it from the cache.
+ */
+public class AsyncMessageSender {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 5000;
+
+    private final ZooKeeper zoo;
+    private final String id;
+    private final int maxInFlight;
+    private final Semaphore window;
+
+    public AsyncMessageSender(ZooKeeper zoo, String id) {
+        this(zoo, id, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public AsyncMessageSender(ZooKeeper zoo, String id, int maxInFlight) {
+        this.zoo = zoo;
+        this.id = id;
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+    }
+
+    public int getInFlight() {
+        return maxInFlight - window.availablePermits();
+    }
+
+    /**
+     * Sends a message without waiting for the transaction (see the blocking cases above).
+     * @param idReceiver The id of the receiver.
+     * @param message The content of the message.
+     * @return A future completed with the path of the created message node, or exceptionally if the sender is not
+     * online, the receiver has no queue or the window stayed full for too long.
+     */
+    public CompletableFuture<String> send(String idReceiver, String message) {
+        return sendBatch(Collections.singletonList(new OutgoingMessage(idReceiver, message))).get(0);
+    }
+
+    /**
+     * Sends a group of messages in a single transaction without waiting for it (see the blocking cases above).
+     * Groups larger than the window are split into several transactions.
+     * @param messages The messages to be sent.
+     * @return One future per message, in the same order as the messages.
+     */
+    public List<CompletableFuture<String>> sendBatch(List<OutgoingMessage> messages) {
+
+        List<CompletableFuture<String>> futures = new ArrayList<>(messages.size());
+        for (int from = 0; from < messages.size(); from += maxInFlight)
+            futures.addAll(sendChunk(messages.subList(from, Math.min(from + maxInFlight, messages.size()))));
+
+        return futures;
+    }
+
+    private List<CompletableFuture<String>> sendChunk(List<OutgoingMessage> messages) {
+
+        List<CompletableFuture<String>> futures = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++)
+            futures.add(new CompletableFuture<>());
+
+        if (!acquire(messages.size())) {
+            failAll(futures, new IllegalStateException("Too many messages in flight, message rejected"));
+            return futures;
+        }
+
+        List<Op> ops = new ArrayList<>(messages.size() + 1);
+        ops.add(Op.check("/online/" + this.id, -1));
+        try {
+            // the layout of an inbox is read synchronously the first time only, then it comes from the cache
+            for (OutgoingMessage message : messages)
+                ops.add(Op.create(InboxLayout.messageParent(zoo, message.getReceiver(), this.id) + "/"
+                        + MessageCodec.NODE_PREFIX, MessageCodec.encode(Message.text(this.id, message.getContent())),
+                        ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+        } catch (KeeperException | InterruptedException e) {
+            window.release(messages.size());
+            failAll(futures, e);
+            return futures;
+        }
+
+        AsyncCallback.MultiCallback callback = (rc, path, ctx, results) -> {
+            window.release(messages.size());
+
+            if (rc == KeeperException.Code.OK.intValue()) {
+                // results.get(0) is the online check
+                for (int i = 0; i < futures.size(); i++)
+                    futures.get(i).complete(((OpResult.CreateResult) results.get(i + 1)).getPath());
+                return;
+            }
+
+            for (OutgoingMessage message : messages)
+                InboxLayout.forget(message.getReceiver());
+            failAll(futures, describeFailure(rc, ops, results));
+        };
+
+        try {
+            zoo.multi(ops, callback, null);
+        } catch (RuntimeException e) {
+            window.release(messages.size());
+            failAll(futures, e);
+        }
+
+        return futures;
+    }
+
+    private boolean acquire(int permits) {
+        try {
+            return window.tryAcquire(permits, ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Finds the operation that made the transaction fail (the others report a runtime inconsistency).
+     */
+    private static Exception describeFailure(int rc, List<Op> ops, List<OpResult> results) {
+
+        if (results != null) {
+            for (int i = 0; i < results.size(); i++) {
+                if (!(results.get(i) instanceof OpResult.ErrorResult))
+                    continue;
+
+                int err = ((OpResult.ErrorResult) results.get(i)).getErr();
+                if (err == KeeperException.Code.OK.intValue()
+                        || err == KeeperException.Code.RUNTIMEINCONSISTENCY.intValue())
+                    continue;
+
+                if (i == 0)
+                    return new IllegalStateException("You are not online. Go online first!");
+                return KeeperException.create(KeeperException.Code.get(err), ops.get(i).getPath());
+            }
+        }
+
+        return KeeperException.create(KeeperException.Code.get(rc));
+    }
+
+    private static void failAll(List<CompletableFuture<String>> futures, Throwable error) {
+        for (CompletableFuture<String> future : futures)
+            future.completeExceptionally(error);
+    }
+}
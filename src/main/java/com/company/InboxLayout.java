@@ -0,0 +1,172 @@
+package com.company;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Layout of the inboxes ("/queue/ID") and of their backups ("/backup/ID").
+ * A flat inbox keeps its messages right under "/queue/ID". A sharded inbox has N bucket nodes "/queue/ID/b<k>" and the
+ * messages of a sender always go to the same bucket (hash of the sender id), so the order of the messages of a sender
+ * is still given by the sequence numbers of its bucket while the receiver watches and lists N small parents instead
+ * of a huge one. The number of buckets is chosen by the master (-Dinbox.buckets=N, 1 = flat) and written as the data
+ * of "/queue/ID", where senders read it (once per receiver, then it is cached).
+ */
+public final class InboxLayout {
+
+    public static final int BUCKETS = Math.max(1, Integer.getInteger("inbox.buckets", 1));
+
+    private static final String BUCKET_PREFIX = "b";
+    private static final int MAX_CACHED_RECEIVERS = 100000;
+    private static final Map<String, Integer> BUCKETS_BY_RECEIVER = new ConcurrentHashMap<>();
+
+    private InboxLayout() {}
+
+    /**
+     * @param buckets The number of buckets of an inbox.
+     * @return The data of the "/queue/ID" node of such an inbox (the usual NEW_CHILD code for flat inboxes).
+     */
+    static byte[] queueData(int buckets) {
+        return buckets > 1 ? String.valueOf(buckets).getBytes(StandardCharsets.US_ASCII) : ZooHelper.Codes.NEW_CHILD;
+    }
+
+    /**
+     * @param data The data of a "/queue/ID" node.
+     * @return The number of buckets of the inbox, 1 if it is flat.
+     */
+    static int bucketCount(byte[] data) {
+
+        if (data == null || data.length == 0)
+            return 1;
+
+        int buckets = 0;
+        for (byte b : data) {
+            if (b < '0' || b > '9') return 1;
+            buckets = buckets * 10 + (b - '0');
+        }
+        return Math.max(1, buckets);
+    }
+
+    static String bucketName(int bucket) {
+        return BUCKET_PREFIX + bucket;
+    }
+
+    /**
+     * @param name The name of a child of an inbox.
+     * @return true if the child is a bucket, false if it is a message.
+     */
+    static boolean isBucket(String name) {
+        return name.startsWith(BUCKET_PREFIX) && MessageCodec.sequenceOf(name) < 0;
+    }
+
+    static int bucketOf(String sender, int buckets) {
+        return (sender.hashCode() & 0x7fffffff) % buckets;
+    }
+
+    /**
+     * @param root The path of an inbox (or of a backup).
+     * @param buckets The number of buckets of the inbox.
+     * @return The paths of the nodes that can hold messages: the root and then the buckets (if any). The root is
+     * included because messages written before the inbox was sharded end up there.
+     */
+    static List<String> parents(String root, int buckets) {
+
+        List<String> parents = new ArrayList<>(buckets + 1);
+        parents.add(root);
+        if (buckets > 1)
+            for (int bucket = 0; bucket < buckets; bucket++)
+                parents.add(root + "/" + bucketName(bucket));
+
+        return parents;
+    }
+
+    /**
+     * @return The path of the node where the messages of the sender are created in the given inbox.
+     */
+    static String parentFor(String root, String sender, int buckets) {
+        return buckets > 1 ? root + "/" + bucketName(bucketOf(sender, buckets)) : root;
+    }
+
+    /**
+     * The method returns the node where a sender has to create its messages for a receiver.
+     * @param zoo The ZooKeeper session of the sender.
+     * @param receiver The id of the receiver.
+     * @param sender The id of the sender.
+     * @return The path of the parent of the new message node.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    static String messageParent(ZooKeeper zoo, String receiver, String sender) throws KeeperException, InterruptedException {
+        return parentFor("/queue/" + receiver, sender, bucketsOf(zoo, receiver));
+    }
+
+    /**
+     * @return The number of buckets of the inbox of the receiver, read from ZooKeeper the first time only. A missing
+     * inbox is reported as flat and not cached, so that writing to it fails as usual.
+     */
+    static int bucketsOf(ZooKeeper zoo, String receiver) throws KeeperException, InterruptedException {
+
+        Integer buckets = BUCKETS_BY_RECEIVER.get(receiver);
+        if (buckets != null)
+            return buckets;
+
+        try {
+            buckets = bucketCount(zoo.getData("/queue/" + receiver, false, null));
+        } catch (KeeperException.NoNodeException e) {
+            return 1;
+        }
+
+        if (BUCKETS_BY_RECEIVER.size() >= MAX_CACHED_RECEIVERS)
+            BUCKETS_BY_RECEIVER.clear();
+        BUCKETS_BY_RECEIVER.put(receiver, buckets);
+        return buckets;
+    }
+
+    /**
+     * @param messagePath The path of a message node (or of its parent) in "/queue".
+     * @return The id of the owner of the inbox.
+     */
+    static String receiverOf(String messagePath) {
+        int start = "/queue/".length();
+        int end = messagePath.indexOf('/', start);
+        return end < 0 ? messagePath.substring(start) : messagePath.substring(start, end);
+    }
+
+    /**
+     * Drops the cached layout of a receiver, i.e. after a write to its inbox failed.
+     */
+    static void forget(String receiver) {
+        BUCKETS_BY_RECEIVER.remove(receiver);
+    }
+
+    /**
+     * @param zoo A ZooKeeper session.
+     * @param root The path of an inbox or of a backup.
+     * @return The full paths of all the message nodes of the inbox, whatever its layout.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    static List<String> listMessages(ZooKeeper zoo, String root) throws KeeperException, InterruptedException {
+
+        List<String> messages = new ArrayList<>();
+        for (String child : zoo.getChildren(root, false)) {
+            if (!isBucket(child)) {
+                messages.add(root + "/" + child);
+                continue;
+            }
+
+            String bucketPath = root + "/" + child;
+            try {
+                for (String message : zoo.getChildren(bucketPath, false))
+                    messages.add(bucketPath + "/" + message);
+            } catch (KeeperException.NoNodeException ignored) { }
+        }
+
+        return messages;
+    }
+}
@@ -0,0 +1,384 @@
+package com.company;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.ACL;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Moves the messages of a user between its inbox ("/queue/ID") and its backup ("/backup/ID") with chunked multi()
+ * transactions: every message is created at the destination and deleted from the source in the same transaction, so
+ * a message is always in exactly one of the two places, whatever happens to the master.
+ *
+ * While a transfer is running, a marker "/transfer/ID" holds its direction. It is created by the first chunk and
+ * deleted by the last one (together with the emptied source): a marker found by a master at startup (or when it takes
+ * over a partition) is an interrupted transfer, and running the same transfer again moves only what is left.
+ *
+ * Reads are pipelined with the asynchronous API, so a backlog of N messages costs about N / MAX_CHUNK_OPS round trips
+ * instead of 3N. The calling thread waits for the callbacks, which are run by the event thread of the session: the
+ * methods must never be called from a watcher or a callback of that session, or they wait forever.
+ */
+class InboxTransfer {
+
+    static final String TRANSFERS = "/transfer";
+
+    interface Directions {
+        byte[] TO_BACKUP = "offline".getBytes();
+        byte[] TO_QUEUE = "online".getBytes();
+    }
+
+    // a multi() is a single request: stay well below the 1MB limit of ZooKeeper (jute.maxbuffer)
+    static final int MAX_CHUNK_OPS = 1000;
+    static final int MAX_CHUNK_BYTES = 512 * 1024;
+
+    private final ZooKeeper zoo;
+
+    InboxTransfer(ZooKeeper zoo) {
+        this.zoo = zoo;
+    }
+
+    /**
+     * Moves the unread messages of a user that went offline to its backup, then deletes the inbox.
+     * The messages keep their bucket; binary messages get a fresh sequential name there, since the backup may still
+     * hold messages of an interrupted transfer with the same names.
+     * @param user The ID of the user
+     * @return The number of messages moved.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    int toBackup(String user) throws KeeperException, InterruptedException {
+
+        String queuePath = "/queue/" + user;
+        String backupPath = "/backup/" + user;
+        int moved = 0;
+
+        // a message may still be arriving while the inbox is being deleted: list again until the inbox is empty
+        do {
+            List<String> sources = InboxLayout.listMessages(zoo, queuePath);
+            sources.sort(Comparator.comparingLong(path -> MessageCodec.sequenceOf(path.substring(path.lastIndexOf('/') + 1))));
+            createParents(backupPath, sources, queuePath);
+
+            moved += move(user, Directions.TO_BACKUP, sources, null, (source, data) -> {
+                String relativePath = source.substring(queuePath.length());
+                if (!MessageCodec.isEnvelope(data))
+                    return backupPath + relativePath;
+                return backupPath + relativePath.substring(0, relativePath.lastIndexOf('/') + 1) + MessageCodec.NODE_PREFIX;
+            });
+
+        } while (!finish(user, queuePath, false));
+
+        return moved;
+    }
+
+    /**
+     * Moves the backed-up messages of a user that came online to its inbox (which must exist), in their original
+     * order. The backup of the user is left empty.
+     * @param user The ID of the user
+     * @return The number of messages moved.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    int toQueue(String user) throws KeeperException, InterruptedException {
+
+        String queuePath = "/queue/" + user;
+        String backupPath = "/backup/" + user;
+
+        List<String> sources = InboxLayout.listMessages(zoo, backupPath);
+        Map<String, byte[]> data = read(sources);
+
+        // binary messages are ordered by timestamp, then by sequence; legacy ones have no timestamp (they go first)
+        Map<String, Message> messages = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            String name = entry.getKey().substring(entry.getKey().lastIndexOf('/') + 1);
+            messages.put(entry.getKey(), MessageCodec.isEnvelope(entry.getValue()) ? MessageCodec.decode(name, entry.getValue()) : null);
+        }
+        List<String> ordered = new ArrayList<>(data.keySet());
+        ordered.sort(Comparator.<String>comparingLong(path -> messages.get(path) == null ? 0 : messages.get(path).getTimestamp())
+                .thenComparingLong(path -> MessageCodec.sequenceOf(path.substring(path.lastIndexOf('/') + 1))));
+
+        // binary messages get a fresh sequential name in the bucket of their sender,
+        // legacy ones must keep their name (it holds the message itself) and go to the root
+        int moved = move(user, Directions.TO_QUEUE, ordered, data, (source, content) -> {
+            Message message = messages.get(source);
+            if (message == null)
+                return queuePath + source.substring(source.lastIndexOf('/'));
+            return InboxLayout.parentFor(queuePath, message.getSender(), InboxLayout.BUCKETS) + "/" + MessageCodec.NODE_PREFIX;
+        });
+
+        finish(user, backupPath, true);
+        return moved;
+    }
+
+    /**
+     * @return The user of every interrupted transfer, with its direction.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    Map<String, byte[]> pending() throws KeeperException, InterruptedException {
+        List<String> markers = new ArrayList<>();
+        for (String user : zoo.getChildren(TRANSFERS, false))
+            markers.add(TRANSFERS + "/" + user);
+
+        Map<String, byte[]> transfers = new HashMap<>();
+        for (Map.Entry<String, byte[]> marker : read(markers).entrySet())
+            transfers.put(marker.getKey().substring(TRANSFERS.length() + 1), marker.getValue());
+        return transfers;
+    }
+
+    /**
+     * Deletes a node and its whole subtree: the subtree is listed level by level with pipelined reads and deleted
+     * bottom-up with chunked multi() transactions.
+     * @param rootPath Path of the root node whose subtree has to be deleted
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    void deleteSubtree(String rootPath) throws KeeperException, InterruptedException {
+
+        List<String> nodes = listSubtree(rootPath);
+        Collections.reverse(nodes);
+
+        for (int from = 0; from < nodes.size(); from += MAX_CHUNK_OPS) {
+            List<String> chunk = nodes.subList(from, Math.min(nodes.size(), from + MAX_CHUNK_OPS));
+            List<Op> ops = new ArrayList<>();
+            for (String node : chunk) ops.add(Op.delete(node, -1));
+
+            try {
+                zoo.multi(ops);
+            } catch (KeeperException.NoNodeException e) {
+                // something else is deleting part of the subtree: go on one node at a time
+                for (String node : chunk) {
+                    try {
+                        zoo.delete(node, -1);
+                    } catch (KeeperException.NoNodeException ignored) { }
+                }
+            }
+        }
+    }
+
+    /* UTILS ***/
+
+    private interface Destination {
+        // the path of the copy of a message, ending with the message prefix for a sequential node
+        String of(String source, byte[] data);
+    }
+
+    /**
+     * Moves the given messages chunk by chunk. The marker of the transfer is created by the first chunk, unless it was
+     * left by an interrupted run of the same transfer.
+     * @param known The data of the messages if it was already read, null otherwise.
+     */
+    private int move(String user, byte[] direction, List<String> sources, Map<String, byte[]> known, Destination destination)
+            throws KeeperException, InterruptedException {
+
+        // the backup is only readable by the master
+        List<ACL> acl = direction == Directions.TO_BACKUP ? ZooDefs.Ids.CREATOR_ALL_ACL : ZooDefs.Ids.OPEN_ACL_UNSAFE;
+
+        String markerPath = TRANSFERS + "/" + user;
+        boolean marked = zoo.exists(markerPath, false) != null;
+        int moved = 0;
+
+        int from = 0;
+        while (from < sources.size()) {
+
+            // read the next chunk, bounded by the number of ops and by the size of the transaction
+            List<String> window = sources.subList(from, Math.min(sources.size(), from + MAX_CHUNK_OPS / 2));
+            Map<String, byte[]> data = known != null ? known : read(window);
+
+            List<Op> ops = new ArrayList<>();
+            if (!marked)
+                ops.add(Op.create(markerPath, direction, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+
+            int bytes = 0;
+            int taken = 0;
+            for (String source : window) {
+                byte[] payload = data.get(source);
+                if (payload != null) {
+                    if (bytes > 0 && bytes + payload.length > MAX_CHUNK_BYTES)
+                        break;
+
+                    bytes += payload.length;
+                    ops.add(create(destination.of(source, payload), payload, acl));
+                    ops.add(Op.delete(source, -1));
+                }
+                taken++;
+            }
+            from += taken;
+
+            if (ops.isEmpty())
+                continue;
+
+            try {
+                zoo.multi(ops);
+                moved += (ops.size() - (marked ? 0 : 1)) / 2;
+            } catch (KeeperException e) {
+                // a single message made the whole chunk fail (i.e. the sender of an ephemeral message went away):
+                // move the messages of the chunk one at a time
+                if (!marked) {
+                    try {
+                        zoo.create(markerPath, direction, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                    } catch (KeeperException.NodeExistsException ignored) { }
+                }
+                for (int i = marked ? 0 : 1; i < ops.size(); i += 2) {
+                    try {
+                        zoo.multi(ops.subList(i, i + 2));
+                        moved++;
+                    } catch (KeeperException.NoNodeException | KeeperException.NodeExistsException ignored) {
+                        ZooHelper.print("<WARNING> Could not move " + ops.get(i + 1).getPath() + ": " + ignored.code());
+                    }
+                }
+            }
+            marked = true;
+        }
+
+        return moved;
+    }
+
+    private static Op create(String path, byte[] data, List<ACL> acl) {
+        if (path.endsWith("/" + MessageCodec.NODE_PREFIX))
+            return Op.create(path, data, acl, CreateMode.PERSISTENT_SEQUENTIAL);
+        return Op.create(path, data, acl, CreateMode.PERSISTENT);
+    }
+
+    /**
+     * Deletes the marker of the transfer together with the buckets of the source (and the source itself unless it
+     * must be kept).
+     * @return False if a message reached the source in the meantime (the transfer must go on).
+     */
+    boolean finish(String user, String sourcePath, boolean keepSource) throws KeeperException, InterruptedException {
+
+        List<Op> ops = new ArrayList<>();
+        try {
+            for (String child : zoo.getChildren(sourcePath, false)) {
+                if (!InboxLayout.isBucket(child))
+                    return false;
+                ops.add(Op.delete(sourcePath + "/" + child, -1));
+            }
+        } catch (KeeperException.NoNodeException e) {
+            keepSource = true;
+        }
+        if (!keepSource)
+            ops.add(Op.delete(sourcePath, -1));
+
+        String markerPath = TRANSFERS + "/" + user;
+        if (zoo.exists(markerPath, false) != null)
+            ops.add(Op.delete(markerPath, -1));
+
+        try {
+            if (!ops.isEmpty())
+                zoo.multi(ops);
+            return true;
+        } catch (KeeperException.NotEmptyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the parents of the destinations (i.e. the buckets of the backup) that are missing.
+     */
+    private void createParents(String destinationRoot, List<String> sources, String sourceRoot)
+            throws KeeperException, InterruptedException {
+
+        Set<String> parents = new HashSet<>();
+        parents.add(destinationRoot);
+        for (String source : sources) {
+            String relativePath = source.substring(sourceRoot.length());
+            parents.add(destinationRoot + relativePath.substring(0, relativePath.lastIndexOf('/')));
+        }
+
+        // the root first
+        List<String> ordered = new ArrayList<>(parents);
+        Collections.sort(ordered);
+        for (String parent : ordered) {
+            try {
+                zoo.create(parent, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException ignored) { }
+        }
+    }
+
+    /**
+     * Reads the data of the given nodes with pipelined asynchronous reads.
+     * @return The data of every node that still exists, in the same order as the paths.
+     */
+    Map<String, byte[]> read(List<String> paths) throws KeeperException, InterruptedException {
+        return read(paths, null);
+    }
+
+    /**
+     * Reads the data of the given nodes with pipelined asynchronous reads.
+     * @param creations If not null, filled with the zxid of the creation of every node read (unique and increasing in
+     *                  the order of creation).
+     * @return The data of every node that still exists, in the same order as the paths.
+     */
+    Map<String, byte[]> read(List<String> paths, Map<String, Long> creations) throws KeeperException, InterruptedException {
+
+        Map<String, byte[]> data = new LinkedHashMap<>();
+        for (int from = 0; from < paths.size(); from += MAX_CHUNK_OPS) {
+            List<String> window = paths.subList(from, Math.min(paths.size(), from + MAX_CHUNK_OPS));
+            byte[][] results = new byte[window.size()][];
+            long[] zxids = new long[window.size()];
+            KeeperException.Code[] errors = new KeeperException.Code[1];
+            CountDownLatch done = new CountDownLatch(window.size());
+
+            for (int i = 0; i < window.size(); i++) {
+                zoo.getData(window.get(i), false, (rc, path, ctx, content, stat) -> {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    if (code == KeeperException.Code.OK) {
+                        results[(Integer) ctx] = content;
+                        zxids[(Integer) ctx] = stat.getCzxid();
+                    } else if (code != KeeperException.Code.NONODE)
+                        errors[0] = code;
+                    done.countDown();
+                }, i);
+            }
+            done.await();
+
+            if (errors[0] != null)
+                throw KeeperException.create(errors[0]);
+            for (int i = 0; i < window.size(); i++) {
+                if (results[i] == null)
+                    continue;
+                data.put(window.get(i), results[i]);
+                if (creations != null)
+                    creations.put(window.get(i), zxids[i]);
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Lists a node and all its descendants, level by level with pipelined asynchronous reads.
+     * @return The paths of the subtree, every node before its children.
+     */
+    private List<String> listSubtree(String rootPath) throws KeeperException, InterruptedException {
+
+        List<String> nodes = new ArrayList<>();
+        List<String> level = Collections.singletonList(rootPath);
+
+        while (!level.isEmpty()) {
+            nodes.addAll(level);
+            List<String> next = Collections.synchronizedList(new ArrayList<>());
+            KeeperException.Code[] errors = new KeeperException.Code[1];
+            CountDownLatch done = new CountDownLatch(level.size());
+
+            for (String parent : level) {
+                zoo.getChildren(parent, false, (rc, path, ctx, children) -> {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    if (code == KeeperException.Code.OK)
+                        for (String child : children) next.add(path + "/" + child);
+                    else if (code != KeeperException.Code.NONODE)
+                        errors[0] = code;
+                    done.countDown();
+                }, null);
+            }
+            done.await();
+
+            if (errors[0] != null)
+                throw KeeperException.create(errors[0]);
+            level = next;
+        }
+
+        return nodes;
+    }
+}
@@ -1,22 +1,35 @@
 package com.company;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.ACL;
 
 class Master{
 
     private static final String YES = "Y";
     private static final String NO = "N";
+    private static final long STATS_INTERVAL_MILLIS = 10000;
+    private static final long RECONCILE_INTERVAL_MILLIS = 60000;
+
+    // i.e. -Dmaster.recover=true to keep the users, their messages and the pending requests of a previous run
+    private static final boolean RECOVER = Boolean.getBoolean("master.recover");
     private static Scanner input = new Scanner(System.in);
 
     private static ZooKeeper zoo;
     private static ZooHelper zooHelper;
     private static MasterWatcher watcher;
+    private static MasterCluster cluster;
 
     public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
 
+        long initStartupTime = System.nanoTime();
         zoo = ZooHelper.getConnection();    // Connects to ZooKeeper service
         if (zoo == null) { ZooHelper.print("<ERROR> It was impossible to establish a connection to Zookeeper. Exiting..."); return;}
 
@@ -25,15 +38,30 @@ class Master{
 
         zooHelper = new ZooHelper(zoo);     // Instantiate a helper
         watcher = new MasterWatcher(zoo);   //  Sets the master watcher
+        cluster = new MasterCluster(zoo, watcher);
+        watcher.setCluster(cluster);
 
         /*do {
             System.out.print("> Do you want to completely remove the previous tree structure (Y/N)? ");
             String answer = input.nextLine().toUpperCase();
 
             if (answer.equals(YES)) {*/
-                removeTreeStructure();      // Removes previous tree structure
-                createTreeStructure();
-                setWatchers();
+                // Removes previous tree structure, unless recovering or other masters are running on it (checked and
+                // joined under the startup lock, so that masters starting together do not wipe each other's tree)
+                int recovered;
+                cluster.lockStartup();
+                try {
+                    if (RECOVER) ZooHelper.print("<INFO> Recovery startup: keeping the tree structure.");
+                    else if (cluster.countMembers() == 0) removeTreeStructure();
+                    else ZooHelper.print("<INFO> Joining a running cluster of masters: keeping the tree structure.");
+                    createTreeStructure();
+                    setWatchers();
+                    recovered = manageUnprocessedRequests();    // Takes its share of the users (and their pending requests)
+                } finally {
+                    cluster.unlockStartup();
+                }
+                ZooHelper.print("<INFO> Master ready in " + (System.nanoTime() - initStartupTime) / 1000000 + "ms ("
+                        + recovered + " pending requests recovered).");
                 /*break;
             } else if (answer.equals(NO)) {
                 manageUnprocessedRequests();
@@ -47,7 +75,18 @@ class Master{
 
         System.out.println("<<< ENTER ANY KEY AT ANY TIME TO STOP THE MASTER. >>>");
         System.out.println("> Master is running ...");
-        while(true) Thread.sleep(100);
+        long lastReconcile = System.currentTimeMillis();
+        while(true) {
+            Thread.sleep(STATS_INTERVAL_MILLIS);
+            String report = watcher.report();
+            if (report != null) ZooHelper.print(report);
+
+            // catch the offline events that were missed
+            if (System.currentTimeMillis() - lastReconcile >= RECONCILE_INTERVAL_MILLIS) {
+                watcher.reconcile();
+                lastReconcile = System.currentTimeMillis();
+            }
+        }
         //input.nextLine();
         //System.out.println("> Stopping the master ...");
     }
@@ -65,34 +104,43 @@ class Master{
         deleteSubtree("/online");
         deleteSubtree("/queue");
         deleteSubtree("/registry");
-        deleteSubtree("/backup");
+        watcher.clearOfflineStore();    // "/backup", or the logs of the local store
+        deleteSubtree(InboxTransfer.TRANSFERS);
 
     }
 
     /**
-     * Creates a new clean tree structure.
+     * Creates the tree structure (only the nodes that are missing).
      */
     private static void createTreeStructure() throws KeeperException, InterruptedException {
 
         // create REQUEST node with two children: ENROLL and QUIT
-        zoo.create("/request", "znode".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-        zoo.create("/request/enroll", "znode".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-        zoo.create("/request/quit", "znode".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        createIfMissing("/request", ZooDefs.Ids.OPEN_ACL_UNSAFE);
+        createIfMissing("/request/enroll", ZooDefs.Ids.OPEN_ACL_UNSAFE);
+        createIfMissing("/request/quit", ZooDefs.Ids.OPEN_ACL_UNSAFE);
 
         // create ONLINE, QUEUE nodes
-        zoo.create("/online", "znode".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-        zoo.create("/queue", "znode".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        createIfMissing("/online", ZooDefs.Ids.OPEN_ACL_UNSAFE);
+        createIfMissing("/queue", ZooDefs.Ids.OPEN_ACL_UNSAFE);
+        createIfMissing(InboxTransfer.TRANSFERS, ZooDefs.Ids.OPEN_ACL_UNSAFE);
 
+        createIfMissing("/registry", ZooDefs.Ids.CREATOR_ALL_ACL);
+        createIfMissing("/backup", ZooDefs.Ids.CREATOR_ALL_ACL);
+
+    }
+
+    /**
+     * Creates a persistent node unless it already exists (i.e. created by another master).
+     */
+    private static void createIfMissing(String path, List<ACL> acl) throws KeeperException, InterruptedException {
         try {
-            zoo.create("/registry", "znode".getBytes(), ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
-            zoo.create("/backup", "znode".getBytes(), ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
+            zoo.create(path, "znode".getBytes(), acl, CreateMode.PERSISTENT);
         } catch (KeeperException.NodeExistsException ignored) { }
-
     }
 
 
     /**
-     * The method recursively deletes all the subtree that has as its root the node specified in input.
+     * The method deletes all the subtree that has as its root the node specified in input.
      * @param rootPath Path of the root node whose subtree has to be deleted
      */
     static void deleteSubtree(String rootPath) throws KeeperException, InterruptedException {
@@ -103,48 +151,50 @@ class Master{
             return;
         }
 
-        // Look for children of the given path, null if there is no child
-        List<String> children = zoo.getChildren(rootPath, false);
-
-        // Node is a leaf iff children == null
-        for (String aChildren : children) deleteSubtree(rootPath + '/' + aChildren);
-
-        // when all the children and their subtrees are deleted, delete also the root
-        zoo.delete(rootPath, -1);
+        // Delete the whole subtree bottom-up, in chunks
+        new InboxTransfer(zoo).deleteSubtree(rootPath);
 
     }
 
     /**
-     * Sets up all necessary watchers.
+     * Sets up all necessary watchers. Afterwards each watcher is set again by the master watcher when it fires.
      */
     static void setWatchers(){
 
+        // The steps are independent: they run in parallel
+        ExecutorService startup = Executors.newFixedThreadPool(4);
         try {
 
-            // Set watchers for new enrolling or quitting requests
-            zoo.getChildren("/request/enroll", watcher);
-            zoo.getChildren("/request/quit", watcher);
+            List<Callable<Void>> steps = Arrays.asList(
+                    // Load the registered users (before any request is processed)
+                    () -> { watcher.loadRegistry(); return null; },
 
-            // Set watcher for new online users
-            zoo.getChildren("/online", watcher);
+                    // Set watchers for new enrolling or quitting requests
+                    () -> { watcher.watchChildren("/request/enroll"); return null; },
+                    () -> { watcher.watchChildren("/request/quit"); return null; },
+
+                    // Set watcher for new online users
+                    () -> { watcher.watchChildren("/online"); return null; });
+
+            for (Future<Void> step : startup.invokeAll(steps)) step.get();
 
         } catch (Exception e) { e.printStackTrace(); }
+        finally { startup.shutdown(); }
 
     }
 
     /**
-     * Checks for any unprocessed requests sent by workers and forwards them to the watcher.
+     * Checks for any unprocessed requests sent by workers and forwards them to the watcher, then waits until they are
+     * processed. Joining the cluster gives this master its partitions: in each of them the pending enroll, quit and
+     * online requests, the interrupted transfers and the users that went offline in the meantime are recovered, and the
+     * users already online are watched again (see {@link MasterWatcher#recoverPartitions}).
+     * @return The number of requests recovered.
      */
+    private static int manageUnprocessedRequests() throws KeeperException, InterruptedException {
 
-    private static void manageUnprocessedRequests() throws KeeperException, InterruptedException {
-
-        // handle quit requests first
-        List<String> unprocessedQuittingIds = zoo.getChildren("/request/quit", false,null);
-        for (String id : unprocessedQuittingIds) watcher.handleQuitRequest(id);
-
-        // handle enrollment requests
-        List<String> unprocessedEnrollingIds = zoo.getChildren("/request/enroll", false,null);
-        for (String id : unprocessedEnrollingIds) watcher.handleEnrollRequest(id);
+        int recovered = cluster.join();
+        watcher.awaitIdle();
+        return recovered;
 
     }
 
@@ -0,0 +1,174 @@
+package com.company;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.Watcher.Event.EventType;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Membership of a master in the cluster of masters.
+ * Every master registers an ephemeral sequential node in "/masters" and watches its siblings. The user ids are hashed
+ * into PARTITIONS partitions and, given the sorted list of members, partition p belongs to member p % (number of
+ * members): every master computes the same assignment from the same listing, so no coordination is needed besides
+ * ZooKeeper itself. The masters starting together take turns (see {@link #lockStartup()}).
+ * When a master disappears its session expires, its node is deleted and the survivors take over its partitions.
+ */
+class MasterCluster implements Watcher {
+
+    static final int PARTITIONS = 64;
+    private static final String MASTERS_PATH = "/masters";
+    private static final String STARTUP_LOCK_PATH = "/masters-startup";
+
+    private final ZooKeeper zoo;
+    private final MasterWatcher watcher;
+    private String memberName;
+    private volatile BitSet owned = new BitSet(PARTITIONS);
+    private boolean joined;
+
+    // the rebalances triggered by the watcher, one at a time and in order: they read and wait for ZooKeeper, which the
+    // event thread must never do (it is the thread that runs the callbacks they wait for)
+    private final ExecutorService rebalancer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "master-rebalance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    MasterCluster(ZooKeeper zoo, MasterWatcher watcher) {
+        this.zoo = zoo;
+        this.watcher = watcher;
+    }
+
+    static int partitionOf(String user) {
+        return (user.hashCode() & 0x7fffffff) % PARTITIONS;
+    }
+
+    /**
+     * Takes the startup lock (an ephemeral node, released if the master dies), waiting for the masters starting at the
+     * same time. Counting the members, wiping or keeping the tree, creating it and joining are done while holding it:
+     * a master can then never wipe the tree that another one has just set up.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    void lockStartup() throws KeeperException, InterruptedException {
+        while (true) {
+            try {
+                zoo.create(STARTUP_LOCK_PATH, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                return;
+            } catch (KeeperException.NodeExistsException e) {
+                CountDownLatch released = new CountDownLatch(1);
+                if (zoo.exists(STARTUP_LOCK_PATH, event -> released.countDown()) != null) {
+                    ZooHelper.print("<INFO> Another master is starting: waiting for it.");
+                    released.await();
+                }
+            }
+        }
+    }
+
+    void unlockStartup() throws KeeperException, InterruptedException {
+        try {
+            zoo.delete(STARTUP_LOCK_PATH, -1);
+        } catch (KeeperException.NoNodeException ignored) { }
+    }
+
+    /**
+     * @return The number of masters currently registered (before joining, the ones already running).
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    int countMembers() throws KeeperException, InterruptedException {
+        try {
+            return zoo.getChildren(MASTERS_PATH, false).size();
+        } catch (KeeperException.NoNodeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Registers this master and takes its share of the partitions.
+     * @return The number of pending requests found in the partitions taken.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    int join() throws KeeperException, InterruptedException {
+
+        try {
+            zoo.create(MASTERS_PATH, "znode".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException ignored) { }
+
+        String memberPath = zoo.create(MASTERS_PATH + "/m-", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL_SEQUENTIAL);
+        memberName = memberPath.substring(MASTERS_PATH.length() + 1);
+
+        return rebalance();
+    }
+
+    boolean owns(String user) {
+        return owned.get(partitionOf(user));
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == EventType.NodeChildrenChanged && MASTERS_PATH.equals(event.getPath())) {
+            rebalancer.execute(() -> {
+                try {
+                    rebalance();
+                } catch (KeeperException | InterruptedException e) {
+                    ZooHelper.print("<ERROR> Could not rebalance the partitions: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the members (setting the watcher again) and takes the partitions assigned to this master. The requests
+     * pending in the partitions gained are recovered, since their previous owner may have gone away before answering.
+     * @return The number of pending requests recovered.
+     */
+    private synchronized int rebalance() throws KeeperException, InterruptedException {
+
+        List<String> memberNames = zoo.getChildren(MASTERS_PATH, this);
+        Collections.sort(memberNames);
+
+        int index = memberNames.indexOf(memberName);
+        if (index < 0) {
+            ZooHelper.print("<ERROR> This master is not registered anymore (session expired?): it owns no partition.");
+            BitSet lost = joined ? owned : allPartitions();
+            owned = new BitSet(PARTITIONS);
+            joined = true;
+            watcher.releasePartitions(lost);
+            return 0;
+        }
+
+        BitSet newOwned = new BitSet(PARTITIONS);
+        for (int partition = index; partition < PARTITIONS; partition += memberNames.size())
+            newOwned.set(partition);
+
+        BitSet gained = (BitSet) newOwned.clone();
+        gained.andNot(owned);
+        // the first time, every partition of the others is lost (the store starts owning them all)
+        BitSet lost = joined ? (BitSet) owned.clone() : allPartitions();
+        lost.andNot(newOwned);
+        joined = true;
+
+        owned = newOwned;
+
+        ZooHelper.print("<INFO> Master " + memberName + " owns " + newOwned.cardinality() + "/" + PARTITIONS
+                + " partitions of a cluster of " + memberNames.size() + ".");
+
+        if (!lost.isEmpty())
+            watcher.releasePartitions(lost);
+        if (gained.isEmpty())
+            return 0;
+        watcher.acquirePartitions(gained);
+        return watcher.recoverPartitions(gained);
+    }
+
+    private static BitSet allPartitions() {
+        BitSet all = new BitSet(PARTITIONS);
+        all.set(0, PARTITIONS);
+        return all;
+    }
+}
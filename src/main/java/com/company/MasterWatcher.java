@@ -1,19 +1,101 @@
 package com.company;
 
 import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.zookeeper.Watcher.Event.EventType;
 
 public class MasterWatcher implements Watcher {
 
+    // i.e. -Dmaster.threads=8 to process the requests of up to 8 users in parallel
+    private static final int LANES = Integer.getInteger("master.threads", Runtime.getRuntime().availableProcessors());
+
     private ZooKeeper zoo;
     private ZooHelper zooHelper;
+    private PartitionedExecutor executor;
+    private RegistryCache registry;
+    private InboxTransfer transfer;
+    private OfflineStore store;
+
+    // last known children of each watched node
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    // null when the master runs alone (it owns every user)
+    private MasterCluster cluster;
 
     MasterWatcher(ZooKeeper zoo) {
 
         this.zoo = zoo;
         this.zooHelper = new ZooHelper(this.zoo);
+        this.executor = new PartitionedExecutor(Math.max(1, LANES));
+        this.registry = new RegistryCache(zoo);
+        this.transfer = new InboxTransfer(zoo);
+        this.store = OfflineStore.create(zoo);
+
+    }
+
+    void setCluster(MasterCluster cluster) {
+        this.cluster = cluster;
+    }
+
+    private boolean owns(String user) {
+        return cluster == null || cluster.owns(user);
+    }
+
+    /**
+     * Loads the registered users in memory. Must be called before the watchers on the requests are set.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    void loadRegistry() throws KeeperException, InterruptedException {
+        registry.load();
+    }
+
+    /**
+     * Called when this master stops owning some partitions of the users: waits for the work of the store in progress
+     * on them, then closes them.
+     * @param partitions The partitions lost.
+     */
+    void releasePartitions(BitSet partitions) {
+        store.release(partitions);
+    }
 
+    /**
+     * Drops the messages of the offline store (clean start, see {@link OfflineStore#clear()}).
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    void clearOfflineStore() throws KeeperException, InterruptedException {
+        store.clear();
+    }
+
+    /**
+     * Called when this master starts owning some partitions of the users, before their requests are recovered.
+     * @param partitions The partitions gained.
+     */
+    void acquirePartitions(BitSet partitions) {
+        store.acquire(partitions);
+    }
+
+    /**
+     * Waits until every request handed to the executor so far has been processed.
+     * @throws InterruptedException -
+     */
+    void awaitIdle() throws InterruptedException {
+        executor.awaitIdle();
+    }
+
+    /**
+     * @return The statistics of the requests processed and of the registry cache since the previous report, null if
+     * there were none.
+     */
+    String report() {
+        String requests = executor.report();
+        String cache = registry.report();
+        if (requests == null || cache == null)
+            return requests == null ? cache : requests;
+        return requests + System.lineSeparator() + cache;
     }
 
     /**
@@ -24,11 +106,17 @@ public class MasterWatcher implements Watcher {
      * - a request of enrollment from a worker (creation of a child node in the path /request/enroll)
      * - a request of quitting from a worker (creation of a child node in the path /request/quit)
      * - an online user even (creation of a child node in the path /online)
-     * - an offline user event (deletion of a child node in the path /online
+     * - an offline user event (deletion of the node /online/ID, watched since the user was taken online)
      *
-     * To distinguish between events of creation and deletion, a search for nodes with NEW_CHILD_CODE is firstly performed.
-     * In case of new children, this means that these nodes have been recently added and need some processing. If the code
-     * is missing, instead, this clearly means that we have a deletion event.
+     * To find the new requests, the master keeps the last listing of each watched node and compares it with the listing
+     * returned when the watcher that fired is set again (a single round trip): the added children are the new requests.
+     * Only the watcher that fired is set again. The version of the list of children tells when a child was deleted and
+     * created again between two listings.
+     * A user going offline is found out by the watcher set on its own node, so only that user is handled; the users
+     * whose event was missed are found by {@link #reconcile()}.
+     *
+     * The event thread only finds out what has to be done: the requests are then processed by the executor, in parallel
+     * for different users and in order for the same user.
      *
      * @param event Event triggered containing type, path and state
      */
@@ -48,21 +136,52 @@ public class MasterWatcher implements Watcher {
         String triggerPath = event.getPath();       // the path at which the watcher was triggered
         EventType triggerEvent = event.getType();   // the type of event that triggered the watcher
 
+        // OFFLINE USER
+        if (triggerEvent == EventType.NodeDeleted && triggerPath != null && triggerPath.startsWith("/online/")) {
+            String missingUser = triggerPath.substring("/online/".length());
+            dispatch(missingUser, "offline", () -> handleOfflineUser(missingUser));
+            return;
+        }
+
         if (triggerEvent != EventType.NodeChildrenChanged)
             return;
 
         try {
 
-            String newChild = getNewChild(triggerPath); // ID of the last node added to triggerPath; null if no new node is found
+            // set the watcher again and find out what changed since the previous listing
+            Stat stat = new Stat();
+            Set<String> children = new HashSet<>(zoo.getChildren(triggerPath, this, stat));
+            Snapshot previous = snapshots.getOrDefault(triggerPath, new Snapshot(Collections.emptySet(), stat.getCversion()));
+            snapshots.put(triggerPath, new Snapshot(children, stat.getCversion()));
+
+            Set<String> addedChildren = new HashSet<>(children);
+            addedChildren.removeAll(previous.children);
+            Set<String> removedChildren = new HashSet<>(previous.children);
+            removedChildren.removeAll(children);
+
+            // every create or delete of a child bumps the cversion: if the difference does not explain all of them,
+            // some child was deleted and created again between the two listings (i.e. a worker sending a new request
+            // right after the previous one). Such children still hold the NEW_CHILD code: look for them.
+            if (stat.getCversion() - previous.cversion > addedChildren.size() + removedChildren.size()) {
+                for (String child : children)
+                    if (!addedChildren.contains(child)
+                            && Arrays.equals(zooHelper.getCode(triggerPath + "/" + child), ZooHelper.Codes.NEW_CHILD))
+                        addedChildren.add(child);
+            }
 
-            if (triggerPath.contains("/request") && newChild != null) {
-                if (triggerPath.contains("/enroll")) handleEnrollRequest(newChild);
-                else if (triggerPath.contains("/quit")) handleQuitRequest(newChild);
+            if (triggerPath.contains("/request")) {
+                for (String newChild : addedChildren) {
+                    if (triggerPath.contains("/enroll"))
+                        dispatch(newChild, "enroll", () -> handleEnrollRequest(newChild));
+                    else if (triggerPath.contains("/quit"))
+                        dispatch(newChild, "quit", () -> handleQuitRequest(newChild));
+                }
             }
 
+            // the removed children of "/online" are handled by the watchers on the nodes themselves
             else if (triggerPath.contains("/online")) {
-                if (newChild != null) handleOnlineUser(newChild);
-                else handleOfflineUser();
+                for (String newChild : addedChildren)
+                    dispatch(newChild, "online", () -> handleOnlineUser(newChild));
             }
 
         } catch (KeeperException e) {
@@ -70,30 +189,167 @@ public class MasterWatcher implements Watcher {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Sets the children watcher on a node and takes its current listing as the starting point: the children found now
+     * are not considered new.
+     * @param path The path of the node to be watched.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    void watchChildren(String path) throws KeeperException, InterruptedException {
+        Stat stat = new Stat();
+        Set<String> children = new HashSet<>(zoo.getChildren(path, this, stat));
+        snapshots.put(path, new Snapshot(children, stat.getCversion()));
+    }
+
+    /**
+     * A listing of a watched node together with the version of its list of children.
+     */
+    private static class Snapshot {
+        private final Set<String> children;
+        private final int cversion;
+
+        Snapshot(Set<String> children, int cversion) {
+            this.children = children;
+            this.cversion = cversion;
+        }
+    }
+
+    /**
+     * The method recovers the requests of the given partitions that nobody answered, i.e. because they belonged to a
+     * master that went away (or to this same master before a restart): pending enroll, quit and online requests (still
+     * holding the NEW_CHILD code) are processed, interrupted transfers are run again, the users already online are
+     * watched and the users that went offline in the meanwhile (queue without online node) are taken offline.
+     * @param partitions The partitions that this master has just taken over.
+     * @return The number of requests handed to the executor.
+     */
+    int recoverPartitions(BitSet partitions) {
+
+        int recovered = 0;
+        try {
+            List<String> paths = new ArrayList<>();
+            for (String parent : Arrays.asList("/request/enroll", "/request/quit", "/online"))
+                for (String user : zoo.getChildren(parent, false))
+                    if (partitions.get(MasterCluster.partitionOf(user)))
+                        paths.add(parent + "/" + user);
+
+            // the codes are read all at once (pipelined), not one round trip after the other
+            for (Map.Entry<String, byte[]> entry : transfer.read(paths).entrySet()) {
+                String childPath = entry.getKey();
+                String parent = childPath.substring(0, childPath.lastIndexOf('/'));
+                String user = childPath.substring(parent.length() + 1);
+                byte[] code = entry.getValue();
+
+                // online users served by the previous owner: watch them to find out when they leave
+                if (parent.equals("/online") && Arrays.equals(code, ZooHelper.Codes.SUCCESS)) {
+                    zoo.exists(childPath, this, (rc, path, ctx, stat) -> {
+                        if (KeeperException.Code.get(rc) == KeeperException.Code.NONODE)
+                            dispatch(user, "offline", () -> handleOfflineUser(user));
+                    }, null);
+                    continue;
+                }
+
+                if (!Arrays.equals(code, ZooHelper.Codes.NEW_CHILD))
+                    continue;
+
+                if (parent.endsWith("/enroll"))
+                    dispatch(user, "enroll", () -> handleEnrollRequest(user));
+                else if (parent.endsWith("/quit"))
+                    dispatch(user, "quit", () -> handleQuitRequest(user));
+                else
+                    dispatch(user, "online", () -> handleOnlineUser(user));
+                recovered++;
+            }
+
+            // transfers interrupted by the previous owner: running them again moves what is left
+            Set<String> onlineUsers = new HashSet<>(zoo.getChildren("/online", false));
+            for (Map.Entry<String, byte[]> pending : transfer.pending().entrySet()) {
+                String user = pending.getKey();
+                if (!partitions.get(MasterCluster.partitionOf(user)))
+                    continue;
+
+                if (Arrays.equals(pending.getValue(), InboxTransfer.Directions.TO_QUEUE) && onlineUsers.contains(user))
+                    dispatch(user, "online", () -> handleOnlineUser(user));
+                else
+                    dispatch(user, "offline", () -> handleOfflineUser(user));
+                recovered++;
+            }
 
-        // Set the watchers again
-        Master.setWatchers();
+            for (String user : zoo.getChildren("/queue", false)) {
+                if (partitions.get(MasterCluster.partitionOf(user)) && !onlineUsers.contains(user)) {
+                    dispatch(user, "offline", () -> handleOfflineUser(user));
+                    recovered++;
+                }
+            }
+
+        } catch (KeeperException | InterruptedException e) {
+            ZooHelper.print("<ERROR> Could not recover the pending requests: " + e.getMessage());
+        }
+        return recovered;
     }
 
     /**
-     * Given a path of a znode, the method returns the last children added (last created = first to process).
-     * @param triggerPath The path of the znode where the watcher was triggered.
-     * @return The last children added at the specified path
+     * The method answers a request by setting the result code of its node. The node must still hold the code it was
+     * created with (version 0): if another master already answered (i.e. while partitions were being moved) the answer
+     * is dropped, so that a worker never sees its result overwritten.
+     * @param path The path of the request node.
+     * @param code The result code.
+     * @throws KeeperException -
+     * @throws InterruptedException -
      */
-    private String getNewChild(String triggerPath) throws KeeperException, InterruptedException {
+    private void answer(String path, byte[] code) throws KeeperException, InterruptedException {
+        try {
+            zoo.setData(path, code, 0);
+        } catch (KeeperException.BadVersionException e) {
+            ZooHelper.print("<INFO> Request " + path + " had already been answered.");
+        } catch (KeeperException.NoNodeException e) {
+            ZooHelper.print("<INFO> Request " + path + " was withdrawn before being answered.");
+        }
+    }
 
-        String newChild = null;
-        List<String> children = zoo.getChildren(triggerPath, false);
+    /**
+     * Background pass that takes offline the users of this master that have an inbox but are not online any more, in
+     * case the event of their node being deleted was missed (i.e. the session of the master was lost in the meantime).
+     */
+    void reconcile() {
 
-        for (String child : children) {
-            byte[] child_code = zooHelper.getCode(triggerPath + '/' + child);
-            if (Arrays.equals(child_code, ZooHelper.Codes.NEW_CHILD)) {
-                newChild = child;
-                break;
+        try {
+            // inboxes first: a user logging in after this listing cannot be taken for a missing one
+            List<String> inboxes = zoo.getChildren("/queue", false);
+            Set<String> onlineUsers = new HashSet<>(zoo.getChildren("/online", false));
+            int missing = 0;
+            for (String user : inboxes) {
+                if (owns(user) && !onlineUsers.contains(user)) {
+                    dispatch(user, "offline", () -> handleOfflineUser(user));
+                    missing++;
+                }
             }
+            if (missing > 0)
+                ZooHelper.print("<WARNING> Reconciliation found " + missing + " users that went offline unnoticed.");
+
+        } catch (KeeperException | InterruptedException e) {
+            ZooHelper.print("<ERROR> Could not reconcile the online users: " + e.getMessage());
         }
+    }
+
+    /**
+     * Hands a request to the executor.
+     * The same request may be dispatched twice (i.e. found again while recovering a partition): the requests of a user
+     * are processed in order and a request can only be answered once (see {@link #answer(String, byte[])}), so the
+     * second processing has no visible effect.
+     * @param user The user the request is about.
+     * @param type The type of request (for the statistics).
+     * @param task The processing of the request.
+     */
+    private void dispatch(String user, String type, PartitionedExecutor.Task task) {
+
+        // the users of the partitions owned by other masters are left to them
+        if (!owns(user))
+            return;
 
-        return newChild;
+        executor.submit(user, type, task);
     }
 
     /**
@@ -101,6 +357,7 @@ public class MasterWatcher implements Watcher {
      * The worker created a node with his ID in "/enroll". If the user has a valid ID, a new node with the same ID must
      * be created in the "/registry" node and the old enrollment node must be deleted. If the ID is invalid, an exception
      * must be raised by notifying the worker with the appropriate error code.
+     * A user that is already in the registry cache is rejected without any round trip.
      *
      * Please remember that among all the children, the new ones correspond to new requests, i.e. requests to process.
      * @param user The ID of the node who requested to enroll
@@ -113,16 +370,24 @@ public class MasterWatcher implements Watcher {
         String enrollPath = "/request/enroll/" + user;
         String registryPath = "/registry/" + user;
 
+        if (registry.contains(user)) {
+            ZooHelper.print("<WARNING> User " + user + " is already registered. Triggering failed enrollment for " + user);
+            answer(enrollPath, ZooHelper.Codes.NODE_EXCEPTION);
+            return;
+        }
+
         try {
             zoo.create(registryPath, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
+            registry.added(user);
             ZooHelper.print("<INFO> No exceptions. Triggering successful enrollment for " + user);
-            zoo.setData(enrollPath, ZooHelper.Codes.SUCCESS, -1);
+            answer(enrollPath, ZooHelper.Codes.SUCCESS);
         } catch (KeeperException.NodeExistsException e1) {
+            registry.added(user);
             ZooHelper.print("<WARNING> User " + user + " is already registered. Triggering failed enrollment for " + user);
-            zoo.setData(enrollPath, ZooHelper.Codes.NODE_EXCEPTION, -1);
+            answer(enrollPath, ZooHelper.Codes.NODE_EXCEPTION);
         } catch (Exception e2) {
             ZooHelper.print("<ERROR> Enrollment failed due to unexpected exception " + e2.getMessage());
-            zoo.setData(enrollPath, ZooHelper.Codes.EXCEPTION, -1);
+            answer(enrollPath, ZooHelper.Codes.EXCEPTION);
         }
 
     }
@@ -140,22 +405,23 @@ public class MasterWatcher implements Watcher {
         String quitPath = "/request/quit/" + user;
         String registryPath = "/registry/" + user;
         String queuePath = "/queue/" + user;
-        String backupPath = "/backup/" + user;
 
         try {
             zoo.delete(registryPath, -1);
+            registry.removed(user);
             Master.deleteSubtree(queuePath);
-            Master.deleteSubtree(backupPath);
+            store.remove(user);
         } catch (KeeperException.NoNodeException e1) {
-            zoo.setData(quitPath, ZooHelper.Codes.NODE_EXCEPTION, -1);
+            registry.removed(user);
+            answer(quitPath, ZooHelper.Codes.NODE_EXCEPTION);
             return;
         } catch (Exception e1) {
-            zoo.setData(quitPath, ZooHelper.Codes.EXCEPTION, -1);
+            answer(quitPath, ZooHelper.Codes.EXCEPTION);
             return;
         }
 
         // If no exception is raised, change the code of the node to confirm successful request processing
-        zoo.setData(quitPath, ZooHelper.Codes.SUCCESS, -1);
+        answer(quitPath, ZooHelper.Codes.SUCCESS);
 
     }
 
@@ -163,8 +429,8 @@ public class MasterWatcher implements Watcher {
      * The method handles the online enrollments that are caught by the watcher on "/online" znode children.
      * - W: Creates a node with his ID in "/online".
      * - M: Checks that the user was registered. Exiting otherwise.
-     * - M: Creates a node in "/queue" and in "/backup" in case the latest was not created previously.
-     * - M: If there are messages (znode children) in "/backup/id", the master will be move them to "/queue/id".
+     * - M: Creates a node in "/queue" in case it was not created previously.
+     * - M: If there are messages in the offline store (see {@link OfflineStore}), the master will be move them to "/queue/id".
      * - M: Once everything is ready, the master updates the znode value to notify the user and set a watcher for offline request
      *
      * @param user The ID of the online node
@@ -177,41 +443,37 @@ public class MasterWatcher implements Watcher {
         String registryUserPath = "/registry/" + user;
         String onlineUserPath   = "/online/"   + user;
         String queueUserPath    = "/queue/"    + user;
-        String backupUserPath   = "/backup/"   + user;
 
         // NON-VALID USER:
-        // Notify worker: change /online code
-        if (!zooHelper.exists(registryUserPath)) {
+        // Notify worker: change /online code (the cache may not have seen a very recent enrollment yet: ask ZooKeeper)
+        if (!registry.contains(user) && !zooHelper.exists(registryUserPath)) {
             ZooHelper.print("<ERROR> " + user + " cannot go online without being registered! He must register first!");
-            zoo.setData(onlineUserPath, ZooHelper.Codes.NODE_EXCEPTION, -1);
+            answer(onlineUserPath, ZooHelper.Codes.NODE_EXCEPTION);
             return;
         }
 
         // VALID USER:
-        // Notify worker: change /online node code and set a watcher to check when it will be deleted
-        zoo.setData(onlineUserPath, ZooHelper.Codes.SUCCESS, -1);
-        zoo.exists(onlineUserPath, this);    //
-
-        // Create inbox (=queue); warning if there is a previous node (assuming fresh node)
+        // Create inbox (=queue), with its buckets if inboxes are sharded; warning if there is a previous node (assuming fresh node)
         try {
-            zoo.create(queueUserPath, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            List<Op> inbox = new ArrayList<>();
+            inbox.add(Op.create(queueUserPath, InboxLayout.queueData(InboxLayout.BUCKETS), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+            List<String> inboxParents = InboxLayout.parents(queueUserPath, InboxLayout.BUCKETS);
+            for (String bucketPath : inboxParents.subList(1, inboxParents.size()))
+                inbox.add(Op.create(bucketPath, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+            zoo.multi(inbox);
         } catch (KeeperException.NodeExistsException e){
             ZooHelper.print("<WARNING> " + user + " already had an unexpected node in " + queueUserPath + ".");
         }
 
-        // Create/retrieve backup:
-        // if there is a node "/backup" and it contains backed-up messages, retrieve them and move them to /queue.
-        if (zooHelper.exists(backupUserPath)) {
-            List<String> messages = zoo.getChildren(backupUserPath, false);
-            for (String message : messages)
-                zoo.create(queueUserPath + "/" + message, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
-
-            // Then delete the old backed-up messages
-            Master.deleteSubtree(backupUserPath);
-        }
-        // in any case create a fresh /backup/ID znode
-        zoo.create(backupUserPath, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
+        // Retrieve the messages stored while the user was offline and move them to /queue
+        int moved = store.restore(user);
+        if (moved > 0)
+            ZooHelper.print("<INFO> Restored " + moved + " backed-up messages of " + user + ".");
 
+        // Notify worker once its inbox is ready: change /online node code and set a watcher to check when it will be deleted
+        answer(onlineUserPath, ZooHelper.Codes.SUCCESS);
+        if (zoo.exists(onlineUserPath, this) == null)
+            handleOfflineUser(user);    // already gone
 
     }
 
@@ -219,39 +481,24 @@ public class MasterWatcher implements Watcher {
     /**
      * The method handles the offline enrollments that are caught by the watcher on "/online" znode children.
      * - W: Deletes a node with his ID in "/online".
-     * - M: If there are messages (znode children) in "/queue/id", the master will be move them to "/backup/id".
+     * - M: If there are messages (znode children) in "/queue/id", the master will be move them to the offline store.
      * - M: Once everything is finish, the master deletes the znode "/queue/id" as well as its children.
     */
-    private void handleOfflineUser() throws KeeperException, InterruptedException {
-
-        // First of all, find who is the missing user by comparing online with queue:
-        //  queue should differ from online only for the disconnected user
-        HashSet<String> currentOnlineUsers = new HashSet<>(zoo.getChildren("/online", false));
-        HashSet<String> allOnlineUsers = new HashSet<>(zoo.getChildren("/queue", false));
-
-        // remove from the original set of all the online users, the users that are still online
-        allOnlineUsers.removeAll(currentOnlineUsers);
+    private void handleOfflineUser(String missingUser) throws KeeperException, InterruptedException {
 
-        // in the resulting list now we have only the disconnected (missing) users
-        for (String missingUser : allOnlineUsers) {
-            ZooHelper.print("<INFO> " + missingUser + " disconnected.");
+        String queueUserPath    = "/queue/"    + missingUser;
 
-            String queueUserPath    = "/queue/"    + missingUser;
-            String backupUserPath   = "/backup/"   + missingUser;
-
-            // Get all his unread messages (those still in the queue) and move them to the backup
-            List<String> unreadMessages = zoo.getChildren(queueUserPath, false);
-            for (String message : unreadMessages) {
-                try {
-                    zoo.create(backupUserPath + "/" + message, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
-                } catch (KeeperException.NodeExistsException ignored) { }
-
-            }
+        // already taken offline, or back online and already served (the event was about its previous session)
+        if (!zooHelper.exists(queueUserPath)
+                || Arrays.equals(zooHelper.getCode("/online/" + missingUser), ZooHelper.Codes.SUCCESS))
+            return;
 
-            // Once it's done, delete the queue
-            Master.deleteSubtree(queueUserPath);
+        ZooHelper.print("<INFO> " + missingUser + " disconnected.");
 
-        }
+        // Move all his unread messages (those still in the queue) to the backup, then delete the queue
+        int moved = store.backup(missingUser);
+        if (moved > 0)
+            ZooHelper.print("<INFO> Backed up " + moved + " unread messages of " + missingUser + ".");
 
     }
 }
@@ -0,0 +1,51 @@
+package com.company;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message as stored in the znode data of a queue: who sent it, when it was sent, what kind of content it carries and
+ * the content itself.
+ */
+public class Message {
+
+    public interface ContentTypes {
+        byte TEXT = 0;
+        byte BINARY = 1;
+    }
+
+    private final String sender;
+    private final long timestamp;
+    private final byte contentType;
+    private final byte[] payload;
+
+    public Message(String sender, long timestamp, byte contentType, byte[] payload) {
+        this.sender = sender;
+        this.timestamp = timestamp;
+        this.contentType = contentType;
+        this.payload = payload;
+    }
+
+    public static Message text(String sender, String text) {
+        return new Message(sender, System.currentTimeMillis(), ContentTypes.TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getSender() {
+        return this.sender;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public byte getContentType() {
+        return this.contentType;
+    }
+
+    public byte[] getPayload() {
+        return this.payload;
+    }
+
+    public String getText() {
+        return new String(this.payload, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,125 @@
+package com.company;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary format of the messages kept in the znode data of "/queue/ID/m<sequence>" nodes:
+ *
+ *   | magic (1) | version (1) | content type (1) | timestamp (8) | sender length (2) | sender (UTF-8) | payload |
+ *
+ * The payload takes the rest of the data, so its length is not stored.
+ * Messages written before this format existed keep everything in the node name ("sender>text<sequence>") and have the
+ * NEW_CHILD code as data: they are still decoded from the name until no such node is left.
+ */
+public final class MessageCodec {
+
+    public static final String NODE_PREFIX = "m";
+
+    private static final byte MAGIC = (byte) 0xC7;
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 13;
+    private static final int SEQUENCE_LENGTH = 10;
+    private static final char LEGACY_SEPARATOR = '>';
+
+    private MessageCodec() {}
+
+    public static byte[] encode(Message message) {
+
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        if (sender.length > 0xFFFF)
+            throw new IllegalArgumentException("Sender id too long: " + sender.length + " bytes");
+
+        byte[] payload = message.getPayload();
+        byte[] data = new byte[HEADER_LENGTH + sender.length + payload.length];
+
+        data[0] = MAGIC;
+        data[1] = VERSION;
+        data[2] = message.getContentType();
+
+        long timestamp = message.getTimestamp();
+        for (int i = 0; i < 8; i++)
+            data[3 + i] = (byte) (timestamp >>> (56 - 8 * i));
+
+        data[11] = (byte) (sender.length >>> 8);
+        data[12] = (byte) sender.length;
+
+        System.arraycopy(sender, 0, data, HEADER_LENGTH, sender.length);
+        System.arraycopy(payload, 0, data, HEADER_LENGTH + sender.length, payload.length);
+        return data;
+    }
+
+    /**
+     * @param data The data of a message znode.
+     * @return true if the data is in the binary format, false if the node was written with the legacy format (or the
+     * data is not a complete envelope: i.e. corrupt, or written by something else).
+     */
+    public static boolean isEnvelope(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH && data[0] == MAGIC && data[1] == VERSION
+                && HEADER_LENGTH + senderLength(data) <= data.length;
+    }
+
+    private static int senderLength(byte[] data) {
+        return ((data[11] & 0xFF) << 8) | (data[12] & 0xFF);
+    }
+
+    /**
+     * Decodes a message znode, whatever the format it was written with. Data that is not a complete envelope is
+     * decoded from the node name, as a legacy node.
+     * @param nodeName The name of the znode (without its parent path).
+     * @param data The data of the znode.
+     * @return The decoded message.
+     */
+    public static Message decode(String nodeName, byte[] data) {
+
+        if (!isEnvelope(data))
+            return decodeLegacy(nodeName);
+
+        long timestamp = 0;
+        for (int i = 0; i < 8; i++)
+            timestamp = (timestamp << 8) | (data[3 + i] & 0xFF);
+
+        int senderLength = senderLength(data);
+        String sender = new String(data, HEADER_LENGTH, senderLength, StandardCharsets.UTF_8);
+
+        int payloadOffset = HEADER_LENGTH + senderLength;
+        byte[] payload = new byte[data.length - payloadOffset];
+        System.arraycopy(data, payloadOffset, payload, 0, payload.length);
+
+        return new Message(sender, timestamp, data[2], payload);
+    }
+
+    /**
+     * Legacy nodes are named "sender>text" followed by the 10 digits of the sequential suffix. Only the suffix is
+     * stripped, so texts containing '>' or digits survive the round trip.
+     */
+    private static Message decodeLegacy(String nodeName) {
+
+        int separator = nodeName.indexOf(LEGACY_SEPARATOR);
+        int end = Math.max(separator + 1, nodeName.length() - SEQUENCE_LENGTH);
+
+        String sender = separator < 0 ? "" : nodeName.substring(0, separator);
+        String text = nodeName.substring(separator + 1, end);
+
+        return new Message(sender, 0, Message.ContentTypes.TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param nodeName The name of a sequential znode.
+     * @return The sequence number appended by ZooKeeper, or -1 if the name does not end with one.
+     */
+    public static long sequenceOf(String nodeName) {
+
+        int start = nodeName.length() - SEQUENCE_LENGTH;
+        if (start < 0)
+            return -1;
+
+        long sequence = 0;
+        for (int i = start; i < nodeName.length(); i++) {
+            char c = nodeName.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            sequence = sequence * 10 + (c - '0');
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,76 @@
+package com.company;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.File;
+import java.util.BitSet;
+
+/**
+ * Where the master keeps the unread messages of the users that are offline.
+ * Moving messages in and out of the store must be resumable: a transfer interrupted by a crash is run again (see
+ * {@link InboxTransfer}) and must move only what is left, without duplicating nor losing messages.
+ */
+interface OfflineStore {
+
+    // i.e. -Doffline.store=znode to keep the offline messages in ZooKeeper ("/backup"), as before
+    String TYPE = System.getProperty("offline.store", "log");
+
+    // i.e. -Doffline.store.dir=/var/lib/messaging (masters on the same host must share it, see SegmentedLogStore)
+    String DIRECTORY = System.getProperty("offline.store.dir", "offline-store");
+
+    /**
+     * Moves the unread messages of a user that went offline from its inbox to the store, then deletes the inbox.
+     * @param user The ID of the user
+     * @return The number of messages stored.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    int backup(String user) throws KeeperException, InterruptedException;
+
+    /**
+     * Moves the stored messages of a user that came online to its inbox (which must exist), in their original order.
+     * @param user The ID of the user
+     * @return The number of messages restored.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    int restore(String user) throws KeeperException, InterruptedException;
+
+    /**
+     * Drops the stored messages of a user that quit.
+     * @param user The ID of the user
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    void remove(String user) throws KeeperException, InterruptedException;
+
+    /**
+     * Drops the stored messages of every user (a clean start of the cluster, when the registry is wiped too).
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    void clear() throws KeeperException, InterruptedException;
+
+    /**
+     * Called when this master starts owning some partitions of the users (again).
+     * @param partitions The partitions gained.
+     */
+    void acquire(BitSet partitions);
+
+    /**
+     * Called when this master stops owning some partitions of the users (another master will use their messages). The
+     * calls in progress for their users are waited for, and the later ones fail until the partitions are acquired again.
+     * @param partitions The partitions lost.
+     */
+    void release(BitSet partitions);
+
+    /**
+     * @return The store selected by the system properties.
+     */
+    static OfflineStore create(ZooKeeper zoo) {
+        if (TYPE.equals("znode"))
+            return new ZnodeOfflineStore(zoo);
+        return new SegmentedLogStore(zoo, new File(DIRECTORY));
+    }
+}
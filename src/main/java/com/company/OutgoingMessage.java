@@ -0,0 +1,23 @@
+package com.company;
+
+/**
+ * A message waiting to be sent: the id of the receiver and the content of the message.
+ */
+public class OutgoingMessage {
+
+    private final String receiver;
+    private final String content;
+
+    public OutgoingMessage(String receiver, String content) {
+        this.receiver = receiver;
+        this.content = content;
+    }
+
+    public String getReceiver() {
+        return this.receiver;
+    }
+
+    public String getContent() {
+        return this.content;
+    }
+}
@@ -0,0 +1,114 @@
+package com.company;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution engine of the master.
+ * Tasks are hashed by user id onto a fixed set of single-threaded lanes: the operations of a user are executed one at
+ * a time and in submission order, while the operations of different users run in parallel.
+ * The engine keeps track of the number of queued tasks and of the latency (from submission to completion) of each
+ * type of task.
+ */
+class PartitionedExecutor {
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private final ExecutorService[] lanes;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+
+    PartitionedExecutor(int size) {
+        this.lanes = new ExecutorService[size];
+        for (int i = 0; i < size; i++) {
+            final int lane = i;
+            lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "master-lane-" + lane);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * @param user The user the task works on (it decides the lane).
+     * @param type The type of the task, i.e. "enroll", used for the latency statistics.
+     * @param task The task.
+     */
+    void submit(String user, String type, Task task) {
+
+        long submitTime = System.nanoTime();
+        Latency latency = latencies.computeIfAbsent(type, k -> new Latency());
+        queued.incrementAndGet();
+
+        lanes[(user.hashCode() & 0x7fffffff) % lanes.length].execute(() -> {
+            queued.decrementAndGet();
+            try {
+                task.run();
+            } catch (Exception e) {
+                ZooHelper.print("<ERROR> " + type + " of " + user + " failed: " + e.getMessage());
+            } finally {
+                latency.record(System.nanoTime() - submitTime);
+            }
+        });
+    }
+
+    /**
+     * Waits until every task submitted so far has been executed.
+     * @throws InterruptedException -
+     */
+    void awaitIdle() throws InterruptedException {
+        for (ExecutorService lane : lanes) {
+            try {
+                lane.submit(() -> { }).get();
+            } catch (ExecutionException ignored) { }
+        }
+    }
+
+    /**
+     * @return A one-line summary of the queue depth and of the latency of each type of task, or null if nothing
+     * happened since the previous report.
+     */
+    String report() {
+
+        StringBuilder report = new StringBuilder("<STATS> queue depth: ").append(queued.get());
+        boolean activity = false;
+
+        for (Map.Entry<String, Latency> entry : new TreeMap<>(latencies).entrySet()) {
+            Latency latency = entry.getValue();
+            long count = latency.count.sumThenReset();
+            long total = latency.totalNanos.sumThenReset();
+            long max = latency.maxNanos.getAndSet(0);
+            if (count == 0)
+                continue;
+
+            activity = true;
+            report.append(" | ").append(entry.getKey()).append(": ").append(count)
+                    .append(" reqs, avg ").append(total / count / 1000).append("us")
+                    .append(", max ").append(max / 1000).append("us");
+        }
+
+        return activity || queued.get() > 0 ? report.toString() : null;
+    }
+
+    private static class Latency {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package com.company;
 
-import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.*;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PerformanceEvaluator {
 
@@ -13,6 +20,7 @@ public class PerformanceEvaluator {
     private static final String USER = "user";
     private static final int N_USERS = 10;
     private static final int N_MESSAGES = 1000;
+    private static final int THROUGHPUT_TEST_SECONDS = 20;
     private static final String LOREM_IPSUM
             = "Neque porro quisquam est qui dolorem ipsum quia dolor sit amet, consectetur, adipisci velit";
 
@@ -31,6 +39,17 @@ public class PerformanceEvaluator {
 
         testMessageSpeed(5);
 
+        //testBatchedMessageSpeed(100);
+
+        //testLoginSpeed(true);     // before: polling every 50ms
+        //testLoginSpeed(false);    // after: answer delivered by the watcher
+
+        //testMasterThroughput(16);  // run it with 1, 2, 3... masters; kill one while it runs to measure the failover
+
+        //testBacklogTransfer(20000);
+
+        //testOfflineStores(20000);     // run it without a master
+
 
     }
 
@@ -58,6 +77,259 @@ public class PerformanceEvaluator {
 
     }
 
+    // clients threads enroll and unregister their own user in a loop for THROUGHPUT_TEST_SECONDS.
+    // Print the number of requests answered per second and the slowest request: when a master is killed during the test,
+    // the slowest request is the time the other masters needed to take over its users
+
+    private static void testMasterThroughput(int clients) {
+
+        AtomicInteger answeredRequests = new AtomicInteger();
+        AtomicLong slowestRequest = new AtomicLong();
+        long endTime = System.currentTimeMillis() + THROUGHPUT_TEST_SECONDS * 1000;
+
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            final String id = "throughput" + c;
+            threads[c] = new Thread(() -> {
+                try {
+                    Worker worker = new Worker(ZooHelper.getConnection(), id);
+                    while (System.currentTimeMillis() < endTime) {
+                        long initTime = System.currentTimeMillis();
+                        boolean enrolled = worker.enroll();
+                        slowestRequest.accumulateAndGet(System.currentTimeMillis() - initTime, Math::max);
+
+                        initTime = System.currentTimeMillis();
+                        if (enrolled) worker.quit();
+                        slowestRequest.accumulateAndGet(System.currentTimeMillis() - initTime, Math::max);
+
+                        answeredRequests.addAndGet(enrolled ? 2 : 1);
+                    }
+                    worker.disconnect();
+                } catch (IOException | KeeperException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[c].start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println("===================================================================================");
+        System.out.println("Clients: " + clients);
+        System.out.println("Answered requests: " + answeredRequests.get() + " ("
+                + answeredRequests.get() / THROUGHPUT_TEST_SECONDS + " req/s)");
+        System.out.println("Slowest request (failover time if a master was killed): " + slowestRequest.get() + "ms");
+
+    }
+
+    /**
+     * Measures how long the master takes to move a large backlog from the backup to the inbox of a user that comes
+     * online, and back when the user goes offline. The user is simulated with a bare session, so that nothing is read.
+     */
+    private static void testBacklogTransfer(int backlog) {
+
+        String user = USER + "backlog";
+        String backupPath = "/backup/" + user;
+
+        try {
+            new Worker(ZooHelper.getConnection(), user).enroll();
+
+            // fill the backup directly, as the master would
+            ZooKeeper admin = ZooHelper.getConnection();
+            admin.addAuthInfo("digest", "user:pwd".getBytes());
+            try {
+                admin.create(backupPath, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException ignored) { }
+
+            CountDownLatch filled = new CountDownLatch(backlog);
+            for (int i = 0; i < backlog; i++) {
+                byte[] data = MessageCodec.encode(Message.text(USER + "sender", i + ": " + LOREM_IPSUM));
+                admin.create(backupPath + "/" + MessageCodec.NODE_PREFIX, data, ZooDefs.Ids.CREATOR_ALL_ACL,
+                        CreateMode.PERSISTENT_SEQUENTIAL, (rc, path, ctx, name) -> filled.countDown(), null);
+            }
+            filled.await();
+
+            // online: wait for the answer of the master
+            ZooKeeper session = ZooHelper.getConnection();
+            CountDownLatch answered = new CountDownLatch(1);
+            long initOnlineTime = System.nanoTime();
+            session.create("/online/" + user, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+            session.getData("/online/" + user, event -> answered.countDown(), null);
+            answered.await(10, TimeUnit.MINUTES);
+            long onlineTime = System.nanoTime() - initOnlineTime;
+            int restored = InboxLayout.listMessages(admin, "/queue/" + user).size();
+
+            // offline: wait for the inbox to be deleted
+            CountDownLatch deleted = new CountDownLatch(1);
+            admin.exists("/queue/" + user, event -> deleted.countDown());
+            long initOfflineTime = System.nanoTime();
+            session.close();
+            deleted.await(10, TimeUnit.MINUTES);
+            long offlineTime = System.nanoTime() - initOfflineTime;
+            // only the znode store can be checked from here
+            String backedUp = admin.exists(backupPath, false) == null ? "all"
+                    : String.valueOf(InboxLayout.listMessages(admin, backupPath).size());
+
+            System.out.println("===================================================================================");
+            System.out.println("Backlog: " + backlog + " messages");
+            System.out.println("Restored at login: " + restored + " in " + onlineTime / 1000000 + "ms");
+            System.out.println("Backed up at logout: " + backedUp + " in " + offlineTime / 1000000 + "ms");
+
+            admin.close();
+        } catch (IOException | InterruptedException | KeeperException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compares the offline stores: messages kept as znodes in ZooKeeper against the local segmented log.
+     */
+    private static void testOfflineStores(int backlog) {
+        try {
+            ZooKeeper zoo = ZooHelper.getConnection();
+            zoo.addAuthInfo("digest", "user:pwd".getBytes());
+            testOfflineStore(new ZnodeOfflineStore(zoo), backlog);
+            testOfflineStore(new SegmentedLogStore(zoo, Files.createTempDirectory("offline-store").toFile()), backlog);
+            zoo.close();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Measures the throughput of an offline store: the backlog of a user is moved from its inbox to the store, then
+     * back to the inbox. Run it without a master (it would take the inbox of the test user offline on its own).
+     */
+    private static void testOfflineStore(OfflineStore store, int backlog) {
+
+        String user = USER + "store";
+        String queuePath = "/queue/" + user;
+
+        try {
+            ZooKeeper admin = ZooHelper.getConnection();
+            admin.addAuthInfo("digest", "user:pwd".getBytes());
+            for (String path : new String[]{"/queue", "/backup", InboxTransfer.TRANSFERS}) {
+                try {
+                    admin.create(path, "znode".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                } catch (KeeperException.NodeExistsException ignored) { }
+            }
+            admin.create(queuePath, InboxLayout.queueData(1), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            CountDownLatch filled = new CountDownLatch(backlog);
+            for (int i = 0; i < backlog; i++) {
+                byte[] data = MessageCodec.encode(Message.text(USER + "sender", i + ": " + LOREM_IPSUM));
+                admin.create(queuePath + "/" + MessageCodec.NODE_PREFIX, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT_SEQUENTIAL, (rc, path, ctx, name) -> filled.countDown(), null);
+            }
+            filled.await();
+
+            long initBackupTime = System.nanoTime();
+            int stored = store.backup(user);
+            long backupTime = System.nanoTime() - initBackupTime;
+
+            admin.create(queuePath, InboxLayout.queueData(1), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            long initRestoreTime = System.nanoTime();
+            int restored = store.restore(user);
+            long restoreTime = System.nanoTime() - initRestoreTime;
+            int inbox = InboxLayout.listMessages(admin, queuePath).size();
+
+            System.out.println("===================================================================================");
+            System.out.println("Store: " + store.getClass().getSimpleName() + ", backlog: " + backlog + " messages");
+            System.out.println("Backup: " + stored + " in " + backupTime / 1000000 + "ms ("
+                    + stored * 1000000000L / Math.max(1, backupTime) + " msg/s)");
+            System.out.println("Restore: " + restored + " in " + restoreTime / 1000000 + "ms ("
+                    + restored * 1000000000L / Math.max(1, restoreTime) + " msg/s), " + inbox + " in the inbox");
+
+            new InboxTransfer(admin).deleteSubtree(queuePath);
+            store.remove(user);
+            admin.close();
+        } catch (IOException | InterruptedException | KeeperException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    // Log N_USERS users in and out (they are enrolled first if needed) and print the average login time.
+    // pollingMode = true measures the old polling wait, false the watch-driven one
+    private static void testLoginSpeed(boolean pollingMode) {
+
+        long totalLoginTime = 0;
+        int logins = 0;
+
+        for (int i = 0; i < N_USERS; i++) {
+            try {
+                Worker worker = new Worker(ZooHelper.getConnection(), USER + i);
+                worker.setPollingMode(pollingMode);
+                worker.enroll();
+
+                long initLoginTime = System.nanoTime();
+                boolean loggedIn = worker.login();
+                long loginTime = System.nanoTime() - initLoginTime;
+
+                if (loggedIn) {
+                    totalLoginTime += loginTime;
+                    logins++;
+                }
+                worker.disconnect();
+            } catch (IOException | InterruptedException | KeeperException e) {
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println("===================================================================================");
+        System.out.println("Polling mode: " + pollingMode);
+        System.out.println("Successful logins: " + logins + "/" + N_USERS);
+        if (logins > 0)
+            System.out.println("Avg login time per user: " + totalLoginTime / logins / 1000 + "us");
+
+    }
+
+    // Send 1000 messages between two users with multi() transactions of (at most) batchSize messages each.
+    // Print the sending time next to the usual receiving statistics
+    private static void testBatchedMessageSpeed(int batchSize) {
+
+        try {
+            Worker w1 = new Worker(ZooHelper.getConnection(), "w1");
+            Worker w2 = new Worker(ZooHelper.getConnection(), "w2");
+
+            w1.enroll();
+            w1.login();
+            w2.enroll();
+            w2.login();
+            w1.setMaxBatchSize(batchSize);
+
+            List<OutgoingMessage> messages = new ArrayList<>(N_MESSAGES);
+            for (int message = 0; message < N_MESSAGES; message++)
+                messages.add(new OutgoingMessage(w2.getId(), message + ": " + LOREM_IPSUM));
+
+            long initSendingTime = new Date().getTime();
+            w1.writeBatch(messages);
+            long sendingTime = new Date().getTime() - initSendingTime;
+
+            // give the receiver some time to consume its queue
+            Thread.sleep(1000);
+
+            System.out.println("===================================================================================");
+            System.out.println("Batch size: " + batchSize);
+            System.out.println("Sent messages: " + N_MESSAGES + " in " + sendingTime + "ms");
+            System.out.println("Read Messages: " + readMessages);
+            if (readMessages > 0)
+                System.out.println("Avg receiving time per message: " + totalReceivingTime / readMessages + "ms");
+            System.out.println("Drained batches: " + w2.getDrainedBatches()
+                    + " (max size " + w2.getMaxDrainBatchSize() + ", last inbox depth " + w2.getInboxDepth() + ")");
+
+        } catch (IOException | KeeperException | InterruptedException e) {
+            e.printStackTrace();
+        }
+
+    }
+
     // Send 1000 messages as fast as possible between two users.
     // Print read messages
     // Print avg time per message
@@ -78,7 +350,7 @@ public class PerformanceEvaluator {
             Thread.sleep(50);
 
             for (int message = 0; message < N_MESSAGES; message++) {
-                w1.write(w2.getId(), message + ">" + new Date().getTime() + ">");
+                w1.write(w2.getId(), message + ": " + LOREM_IPSUM);
                 Thread.sleep(interval);
             }
 
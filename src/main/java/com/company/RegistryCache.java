@@ -0,0 +1,105 @@
+package com.company;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.Watcher.Event.EventType;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory copy of the children of "/registry", so that the master can validate logins and reject duplicate
+ * enrollments without a round trip to ZooKeeper.
+ *
+ * The copy is loaded once at startup and kept in sync by the enroll/quit handling of this master ({@link #added},
+ * {@link #removed}) and by a child watch on "/registry" for the changes made by the other masters. The watch may lag
+ * behind: a user that is not found in the cache must be looked up in ZooKeeper before being rejected.
+ */
+class RegistryCache implements Watcher {
+
+    private static final String REGISTRY = "/registry";
+
+    private final ZooKeeper zoo;
+    private final Set<String> users = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    RegistryCache(ZooKeeper zoo) {
+        this.zoo = zoo;
+    }
+
+    /**
+     * Loads the registered users and sets the watcher on "/registry".
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    void load() throws KeeperException, InterruptedException {
+        refresh();
+        ZooHelper.print("<INFO> Registry cache loaded: " + users.size() + " registered users.");
+    }
+
+    private synchronized void refresh() throws KeeperException, InterruptedException {
+        Set<String> registered = new HashSet<>(zoo.getChildren(REGISTRY, this));
+        users.retainAll(registered);
+        users.addAll(registered);
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+
+        if (event.getType() != EventType.NodeChildrenChanged)
+            return;
+
+        try {
+            refresh();
+        } catch (KeeperException e) {
+            ZooHelper.print("<ERROR> Could not refresh the registry cache: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param user The ID of the user
+     * @return True if the user is registered according to the cache.
+     */
+    boolean contains(String user) {
+        if (users.contains(user)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    void added(String user) {
+        users.add(user);
+    }
+
+    void removed(String user) {
+        users.remove(user);
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    /**
+     * @return The size of the cache and its hit rate since the previous report, null if there were no lookups.
+     */
+    String report() {
+
+        long hit = hits.sumThenReset();
+        long miss = misses.sumThenReset();
+        if (hit + miss == 0)
+            return null;
+
+        return "<STATS> registry cache: " + users.size() + " users, " + (hit + miss) + " lookups, hit rate "
+                + (100 * hit / (hit + miss)) + "%";
+    }
+}
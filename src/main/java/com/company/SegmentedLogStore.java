@@ -0,0 +1,675 @@
+package com.company;
+
+import org.apache.zookeeper.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the offline messages on the local disk, so that ZooKeeper only holds coordination state.
+ *
+ * The messages are appended to a log, one per partition of the users (see {@link MasterCluster}), made of fixed-size
+ * memory-mapped segment files: a partition is owned by one master at a time, so each log has a single writer. Masters
+ * running on the same host must share the directory to take over each other's partitions.
+ *
+ * Each record of a segment is:
+ * [length (4)][type (1)][sequence (8)][user length (2)][user][origin (8)][name length (2)][name][data]
+ * where the name is the path of the message relative to the inbox, the length is written last (a record with no length
+ * is the end of the segment) and, for a DELIVERED record, the sequence is the last delivered one and there are no
+ * origin, name and data.
+ *
+ * The index of the live messages of each user is kept in memory and rebuilt by scanning the segments when a log is
+ * opened. Once the messages of a user are delivered, a DELIVERED record is appended: sealed segments left without live
+ * messages are deleted and those with only a few are compacted (the live messages are copied to the active segment).
+ *
+ * Transfers are resumable: the origin of a stored message (the creation zxid of its znode, then its path in the inbox
+ * since the messages created by the same transaction share the zxid) tells whether it was already stored by an
+ * interrupted backup, and the progress of a restore is kept in ZooKeeper as a child of the
+ * transfer marker, updated in the same transaction as the messages restored.
+ *
+ * A call works on the partition of its user while holding the read lock of the partition. Releasing a partition takes
+ * the write lock, so it waits for the calls in progress before closing the log. The calls made after that are rejected
+ * until the partition is acquired again, so a released log is never reopened while its new owner writes it.
+ */
+class SegmentedLogStore implements OfflineStore {
+
+    // i.e. -Doffline.segment.mb=64
+    private static final int SEGMENT_BYTES = Integer.getInteger("offline.segment.mb", 16) * 1024 * 1024;
+
+    // a sealed segment with less live messages than this fraction of its messages is compacted
+    private static final double COMPACTION_THRESHOLD = 0.25;
+
+    private static final byte MESSAGE = 1;
+    private static final byte DELIVERED = 2;
+    private static final String PROGRESS_PREFIX = "r";
+
+    private final ZooKeeper zoo;
+    private final InboxTransfer transfer;
+    private final File directory;
+    private final Partition[] partitions = new Partition[MasterCluster.PARTITIONS];
+
+    SegmentedLogStore(ZooKeeper zoo, File directory) {
+        this.zoo = zoo;
+        this.transfer = new InboxTransfer(zoo);
+        this.directory = directory;
+        for (int i = 0; i < partitions.length; i++)
+            partitions[i] = new Partition(i);
+    }
+
+    @Override
+    public int backup(String user) throws KeeperException, InterruptedException {
+        Partition partition = enter(user);
+        try {
+            return backup(user, partition.log());
+        } finally {
+            partition.exit();
+        }
+    }
+
+    private int backup(String user, PartitionLog log) throws KeeperException, InterruptedException {
+
+        String queuePath = "/queue/" + user;
+        mark(user, InboxTransfer.Directions.TO_BACKUP);
+        int stored = 0;
+
+        // a message may still be arriving while the inbox is being deleted: list again until the inbox is empty
+        do {
+            Map<String, Long> creations = new HashMap<>();
+            Map<String, byte[]> data = transfer.read(InboxLayout.listMessages(zoo, queuePath), creations);
+            List<String> sources = new ArrayList<>(data.keySet());
+            sources.sort(Comparator.<String>comparingLong(creations::get).thenComparing(Comparator.naturalOrder()));
+
+            for (int from = 0; from < sources.size(); from += InboxTransfer.MAX_CHUNK_OPS) {
+                List<String> chunk = sources.subList(from, Math.min(sources.size(), from + InboxTransfer.MAX_CHUNK_OPS));
+
+                // stored (and flushed to disk) first, then deleted from the inbox
+                for (String source : chunk) {
+                    String name = source.substring(queuePath.length() + 1);
+                    if (log.append(user, creations.get(source), name, data.get(source)))
+                        stored++;
+                }
+                log.force();
+                delete(chunk);
+            }
+        } while (!transfer.finish(user, queuePath, false));
+
+        return stored;
+    }
+
+    @Override
+    public int restore(String user) throws KeeperException, InterruptedException {
+        Partition partition = enter(user);
+        try {
+            return restore(user, partition.log());
+        } finally {
+            partition.exit();
+        }
+    }
+
+    private int restore(String user, PartitionLog log) throws KeeperException, InterruptedException {
+
+        String queuePath = "/queue/" + user;
+        String markerPath = InboxTransfer.TRANSFERS + "/" + user;
+        int restored = 0;
+
+        // messages backed up in ZooKeeper before switching to this store (older than the ones in the log)
+        if (zoo.exists("/backup/" + user, false) != null) {
+            restored += transfer.toQueue(user);
+            transfer.deleteSubtree("/backup/" + user);
+        }
+
+        // skip what an interrupted restore already moved
+        String progressPath = progressOf(markerPath);
+        List<StoredMessage> messages = log.messages(user);
+        if (messages.isEmpty()) {
+            unmark(user, progressPath);
+            return restored;
+        }
+
+        long restoredUpTo = progressPath == null ? -1 : Long.parseLong(progressPath.substring(progressPath.lastIndexOf('/') + 2));
+        mark(user, InboxTransfer.Directions.TO_QUEUE);
+
+        int from = 0;
+        while (from < messages.size() && messages.get(from).sequence <= restoredUpTo) from++;
+
+        while (from < messages.size()) {
+            List<Op> ops = new ArrayList<>();
+            int bytes = 0;
+            int to = from;
+            while (to < messages.size() && ops.size() < InboxTransfer.MAX_CHUNK_OPS
+                    && (bytes == 0 || bytes + messages.get(to).data.length <= InboxTransfer.MAX_CHUNK_BYTES)) {
+                bytes += messages.get(to).data.length;
+                ops.add(create(queuePath, messages.get(to)));
+                to++;
+            }
+
+            // the progress is moved forward in the same transaction
+            String nextProgressPath = markerPath + "/" + PROGRESS_PREFIX + messages.get(to - 1).sequence;
+            ops.add(Op.create(nextProgressPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+            if (progressPath != null)
+                ops.add(Op.delete(progressPath, -1));
+
+            try {
+                zoo.multi(ops);
+                restored += to - from;
+            } catch (KeeperException.NodeExistsException e) {
+                // a legacy message (its name is the message) is already in the inbox: move on one message at a time
+                for (int i = from; i < to; i++) {
+                    List<Op> single = new ArrayList<>();
+                    String singleProgressPath = markerPath + "/" + PROGRESS_PREFIX + messages.get(i).sequence;
+                    single.add(Op.create(singleProgressPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                    if (progressPath != null)
+                        single.add(Op.delete(progressPath, -1));
+                    try {
+                        zoo.multi(withFirst(create(queuePath, messages.get(i)), single));
+                        restored++;
+                    } catch (KeeperException.NodeExistsException duplicate) {
+                        zoo.multi(single);
+                    }
+                    progressPath = singleProgressPath;
+                }
+                from = to;
+                continue;
+            }
+            progressPath = nextProgressPath;
+            from = to;
+        }
+
+        // the messages are in the inbox: they can be dropped from the log, then the transfer is over
+        log.delivered(user, messages.get(messages.size() - 1).sequence);
+        unmark(user, progressPath);
+        return restored;
+    }
+
+    @Override
+    public void remove(String user) {
+        Partition partition = enter(user);
+        try {
+            partition.log().delivered(user, Long.MAX_VALUE);
+        } finally {
+            partition.exit();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Partition partition : partitions) {
+            partition.lock.writeLock().lock();
+            try {
+                if (partition.log != null) {
+                    partition.log.close();
+                    partition.log = null;
+                }
+                File folder = partition.directory();
+                File[] files = folder.listFiles();
+                for (File file : files == null ? new File[0] : files) {
+                    if (!file.delete())
+                        throw new UncheckedIOException(new IOException("Cannot delete " + file));
+                }
+                if (folder.exists() && !folder.delete())
+                    throw new UncheckedIOException(new IOException("Cannot delete " + folder));
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void acquire(BitSet owned) {
+        for (int i = owned.nextSetBit(0); i >= 0; i = owned.nextSetBit(i + 1))
+            partitions[i].owned = true;
+    }
+
+    @Override
+    public void release(BitSet lost) {
+        for (int i = lost.nextSetBit(0); i >= 0; i = lost.nextSetBit(i + 1)) {
+            Partition partition = partitions[i];
+            partition.lock.writeLock().lock();
+            try {
+                partition.owned = false;
+                if (partition.log != null) {
+                    partition.log.close();
+                    partition.log = null;
+                }
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /* UTILS ***/
+
+    /**
+     * Takes the read lock of the partition of a user (to be released with {@link Partition#exit()}).
+     * @throws IllegalStateException If this master does not own the partition.
+     */
+    private Partition enter(String user) {
+        Partition partition = partitions[MasterCluster.partitionOf(user)];
+        partition.lock.readLock().lock();
+        if (!partition.owned) {
+            partition.lock.readLock().unlock();
+            throw new IllegalStateException("the partition of " + user + " is not owned by this master");
+        }
+        return partition;
+    }
+
+    /**
+     * A partition of the users: whether this master owns it and its log, opened on first use. Every partition is owned
+     * until it is released (a master alone, or a benchmark, serves them all).
+     */
+    private class Partition {
+        private final int index;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile boolean owned = true;
+        private PartitionLog log;
+
+        Partition(int index) {
+            this.index = index;
+        }
+
+        // The log (the read lock must be held)
+        synchronized PartitionLog log() {
+            if (log == null) {
+                try {
+                    log = new PartitionLog(directory());
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not open the offline store of partition " + index, e);
+                }
+            }
+            return log;
+        }
+
+        void exit() {
+            lock.readLock().unlock();
+        }
+
+        File directory() {
+            return new File(directory, String.format("p%02d", index));
+        }
+    }
+
+    private static Op create(String queuePath, StoredMessage message) {
+
+        // binary messages get a fresh sequential name in the bucket of their sender,
+        // legacy ones must keep their name (it holds the message itself) and go to the root
+        String name = message.name.substring(message.name.lastIndexOf('/') + 1);
+        if (!MessageCodec.isEnvelope(message.data))
+            return Op.create(queuePath + "/" + name, message.data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        String sender = MessageCodec.decode(name, message.data).getSender();
+        return Op.create(InboxLayout.parentFor(queuePath, sender, InboxLayout.BUCKETS) + "/" + MessageCodec.NODE_PREFIX,
+                message.data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+    }
+
+    private static List<Op> withFirst(Op first, List<Op> others) {
+        List<Op> ops = new ArrayList<>();
+        ops.add(first);
+        ops.addAll(others);
+        return ops;
+    }
+
+    private void mark(String user, byte[] direction) throws KeeperException, InterruptedException {
+        try {
+            zoo.create(InboxTransfer.TRANSFERS + "/" + user, direction, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException ignored) { }
+    }
+
+    private void unmark(String user, String progressPath) throws KeeperException, InterruptedException {
+        String markerPath = InboxTransfer.TRANSFERS + "/" + user;
+        List<Op> ops = new ArrayList<>();
+        if (progressPath != null)
+            ops.add(Op.delete(progressPath, -1));
+        ops.add(Op.delete(markerPath, -1));
+        try {
+            zoo.multi(ops);
+        } catch (KeeperException.NoNodeException ignored) { }
+    }
+
+    private String progressOf(String markerPath) throws KeeperException, InterruptedException {
+        try {
+            for (String child : zoo.getChildren(markerPath, false))
+                if (child.startsWith(PROGRESS_PREFIX))
+                    return markerPath + "/" + child;
+        } catch (KeeperException.NoNodeException ignored) { }
+        return null;
+    }
+
+    private void delete(List<String> paths) throws KeeperException, InterruptedException {
+        List<Op> ops = new ArrayList<>();
+        for (String path : paths) ops.add(Op.delete(path, -1));
+        try {
+            zoo.multi(ops);
+        } catch (KeeperException.NoNodeException e) {
+            // i.e. the sender of an ephemeral message went away: one at a time
+            for (String path : paths) {
+                try {
+                    zoo.delete(path, -1);
+                } catch (KeeperException.NoNodeException ignored) { }
+            }
+        }
+    }
+
+    private static class StoredMessage {
+        private final long sequence;
+        private final String name;
+        private final byte[] data;
+
+        StoredMessage(long sequence, String name, byte[] data) {
+            this.sequence = sequence;
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A live message: where its record is.
+     */
+    private static class Pointer {
+        private final long sequence;
+        private final long origin;
+        private final String name;
+        private Segment segment;
+        private int position;
+
+        Pointer(long sequence, long origin, String name, Segment segment, int position) {
+            this.sequence = sequence;
+            this.origin = origin;
+            this.name = name;
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final Map<Long, Pointer> live = new HashMap<>();
+        private int messages;
+        private int tombstones;
+
+        Segment(File directory, long id) throws IOException {
+            this.id = id;
+            this.file = new File(directory, String.format("%019d.log", id));
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), SEGMENT_BYTES));
+        }
+
+        int remaining() {
+            return buffer.capacity() - buffer.position();
+        }
+
+        /**
+         * Writes a record at the end of the segment: the body first, then its length.
+         * @return The position of the record.
+         */
+        int write(ByteBuffer record) {
+            int position = buffer.position();
+            int length = record.remaining();
+            buffer.position(position + 4);
+            buffer.put(record);
+            buffer.putInt(position, length);
+            return position;
+        }
+
+        /**
+         * @return The record at the given position (without its length), null at the end of the segment.
+         */
+        ByteBuffer read(int position) {
+            if (position + 4 > buffer.capacity())
+                return null;
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > buffer.capacity())
+                return null;
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + 4).limit(position + 4 + length);
+            return record.slice();
+        }
+
+        void close() {
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException e) {
+                ZooHelper.print("<WARNING> Could not close " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The log of a partition. All the methods are synchronized: users of the same partition are processed by different
+     * lanes of the master.
+     */
+    private static class PartitionLog {
+
+        private final File directory;
+        private final TreeMap<Long, Segment> segments = new TreeMap<>();
+        private final Map<String, TreeMap<Long, Pointer>> index = new HashMap<>();
+        private Segment active;
+        private long nextSequence;
+
+        PartitionLog(File directory) throws IOException {
+            this.directory = directory;
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Cannot create " + directory);
+
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+            for (File file : files == null ? new File[0] : files) {
+                long id = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+                segments.put(id, new Segment(directory, id));
+            }
+
+            // rebuild the index: every message is live unless a later DELIVERED record of its user covers it
+            Map<String, Long> delivered = new HashMap<>();
+            for (Segment segment : segments.values()) {
+                int position = 0;
+                ByteBuffer record;
+                while ((record = segment.read(position)) != null) {
+                    byte type = record.get();
+                    long sequence = record.getLong();
+                    String user = readString(record);
+                    if (type == MESSAGE) {
+                        long origin = record.getLong();
+                        String name = readString(record);
+                        // a message copied by a compaction that did not finish is found twice: the copy wins
+                        Pointer pointer = new Pointer(sequence, origin, name, segment, position);
+                        index.computeIfAbsent(user, k -> new TreeMap<>()).put(sequence, pointer);
+                        segment.messages++;
+                        nextSequence = Math.max(nextSequence, sequence + 1);
+                    } else if (type == DELIVERED) {
+                        delivered.merge(user, sequence, Math::max);
+                        segment.tombstones++;
+                    }
+                    position += 4 + record.capacity();
+                }
+                segment.buffer.position(position);
+            }
+
+            for (Map.Entry<String, Long> entry : delivered.entrySet()) {
+                TreeMap<Long, Pointer> pointers = index.get(entry.getKey());
+                if (pointers != null)
+                    pointers.headMap(entry.getValue(), true).clear();
+            }
+            index.values().removeIf(Map::isEmpty);
+            for (TreeMap<Long, Pointer> pointers : index.values())
+                for (Pointer pointer : pointers.values())
+                    pointer.segment.live.put(pointer.sequence, pointer);
+
+            active = segments.isEmpty() ? roll() : segments.lastEntry().getValue();
+        }
+
+        /**
+         * Appends a message, unless it was already stored (its origin is not newer than the last one of the user).
+         * @return True if the message was appended.
+         */
+        synchronized boolean append(String user, long origin, String name, byte[] data) {
+
+            TreeMap<Long, Pointer> pointers = index.computeIfAbsent(user, k -> new TreeMap<>());
+            if (!pointers.isEmpty()) {
+                Pointer last = pointers.lastEntry().getValue();
+                if (last.origin > origin || (last.origin == origin && last.name.compareTo(name) >= 0))
+                    return false;
+            }
+
+            byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(1 + 8 + 2 + userBytes.length + 8 + 2 + nameBytes.length + data.length);
+            record.put(MESSAGE).putLong(nextSequence)
+                    .putShort((short) userBytes.length).put(userBytes)
+                    .putLong(origin)
+                    .putShort((short) nameBytes.length).put(nameBytes)
+                    .put(data);
+            record.flip();
+
+            Pointer pointer = write(nextSequence++, origin, name, record);
+            pointers.put(pointer.sequence, pointer);
+            return true;
+        }
+
+        synchronized List<StoredMessage> messages(String user) {
+            List<StoredMessage> messages = new ArrayList<>();
+            for (Pointer pointer : index.getOrDefault(user, new TreeMap<>()).values()) {
+                ByteBuffer record = pointer.segment.read(pointer.position);
+                record.position(1 + 8);
+                readString(record);
+                record.getLong();
+                String name = readString(record);
+                byte[] data = new byte[record.remaining()];
+                record.get(data);
+                messages.add(new StoredMessage(pointer.sequence, name, data));
+            }
+            return messages;
+        }
+
+        /**
+         * Drops the messages of a user up to the given sequence, then reclaims the space of the segments.
+         */
+        synchronized void delivered(String user, long upTo) {
+
+            TreeMap<Long, Pointer> pointers = index.get(user);
+            if (pointers == null)
+                return;
+
+            long last = Math.min(upTo, pointers.lastKey());
+            byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(1 + 8 + 2 + userBytes.length);
+            record.put(DELIVERED).putLong(last).putShort((short) userBytes.length).put(userBytes);
+            record.flip();
+            ensureRoom(record.remaining());
+            active.write(record);
+            active.tombstones++;
+            active.buffer.force();
+
+            Map<Long, Pointer> gone = pointers.headMap(last, true);
+            for (Pointer pointer : gone.values())
+                pointer.segment.live.remove(pointer.sequence);
+            gone.clear();
+            if (pointers.isEmpty())
+                index.remove(user);
+
+            compact();
+        }
+
+        synchronized void force() {
+            active.buffer.force();
+        }
+
+        synchronized void close() {
+            for (Segment segment : segments.values()) segment.close();
+            segments.clear();
+            index.clear();
+        }
+
+        private Pointer write(long sequence, long origin, String name, ByteBuffer record) {
+            ensureRoom(record.remaining());
+            int position = active.write(record);
+            Pointer pointer = new Pointer(sequence, origin, name, active, position);
+            active.live.put(sequence, pointer);
+            active.messages++;
+            return pointer;
+        }
+
+        private void ensureRoom(int recordLength) {
+            if (active.remaining() >= 4 + recordLength)
+                return;
+
+            active.buffer.force();
+            active = roll();
+            if (active.remaining() < 4 + recordLength)
+                throw new IllegalArgumentException("Message larger than a segment: " + recordLength + " bytes");
+        }
+
+        private Segment roll() {
+            long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            try {
+                Segment segment = new Segment(directory, id);
+                segments.put(id, segment);
+                return segment;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create a segment in " + directory, e);
+            }
+        }
+
+        /**
+         * Deletes the sealed segments without live messages and copies the few live messages of the others to the
+         * active segment first. The DELIVERED records of a segment are copied too, unless no older segment is left
+         * (they are only needed to hide the delivered messages of the older segments).
+         */
+        private void compact() {
+
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                if (segment == active)
+                    break;
+                if (!segment.live.isEmpty() && segment.live.size() >= segment.messages * COMPACTION_THRESHOLD)
+                    continue;
+
+                boolean oldest = segment.id == segments.firstKey();
+                int position = 0;
+                ByteBuffer record;
+                while ((record = segment.read(position)) != null) {
+                    int length = record.capacity();
+                    byte type = record.get(0);
+                    long sequence = record.getLong(1);
+                    Pointer pointer = type == MESSAGE ? segment.live.get(sequence) : null;
+
+                    if (pointer != null) {
+                        record.rewind();
+                        ensureRoom(length);
+                        pointer.position = active.write(record);
+                        pointer.segment = active;
+                        active.live.put(sequence, pointer);
+                        active.messages++;
+                    } else if (type == DELIVERED && !oldest) {
+                        record.rewind();
+                        ensureRoom(length);
+                        active.write(record);
+                        active.tombstones++;
+                    }
+                    position += 4 + length;
+                }
+
+                // the copies must be on disk before the originals are gone
+                active.buffer.force();
+                segments.remove(segment.id);
+                segment.close();
+                if (!segment.file.delete())
+                    ZooHelper.print("<WARNING> Could not delete the segment " + segment.file);
+            }
+        }
+
+        private static String readString(ByteBuffer record) {
+            byte[] bytes = new byte[record.getShort()];
+            record.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -3,6 +3,11 @@ package com.company;
 import org.apache.zookeeper.*;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.apache.zookeeper.Watcher.Event.EventType;
 
 public class Worker implements Watcher {
@@ -17,25 +22,45 @@ public class Worker implements Watcher {
 
     private static final String CLOSE = "^C";
 
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
     private static Scanner input = new Scanner(System.in);
 
     private String id;
     private String enrollUserPath, quitUserPath, onlineUserPath, queueUserPath;
+    private volatile List<String> inboxParents;
     private ZooKeeper zoo;
     private ZooHelper zooHelper;
+    private AsyncMessageSender asyncSender;
     private boolean isLoginOk, isUsernameOk;
+    private int maxBatchSize;
+    private boolean drainMode;
+    private boolean pollingMode;
+    private volatile boolean closed;
+
+    // results of the requests sent to the master, completed by the watcher when the master updates the request node
+    private final Map<String, CompletableFuture<byte[]>> pendingResponses = new ConcurrentHashMap<>();
+
+    // inbox statistics of the drain mode: depth of the last listing, number and size of the drained batches
+    private volatile int inboxDepth;
+    private volatile int maxDrainBatchSize;
+    private volatile long drainedBatches, drainedMessages;
 
     public Worker(ZooKeeper connection, String id) throws IOException, InterruptedException {
         this.id = id;
         this.zoo = connection;
         this.zooHelper = new ZooHelper(this.zoo);
+        this.asyncSender = new AsyncMessageSender(this.zoo, this.id);
         this.isLoginOk = false;
         this.isUsernameOk = false;
+        this.maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        this.drainMode = true;
 
         this.enrollUserPath = "/request/enroll/" + this.id;
         this.quitUserPath = "/request/quit/" + this.id;
         this.onlineUserPath = "/online/" + this.id;
         this.queueUserPath = "/queue/" + this.id;
+        this.inboxParents = Collections.singletonList(this.queueUserPath);
     }
 
     public boolean isLoginOk() {
@@ -54,6 +79,50 @@ public class Worker implements Watcher {
         this.isUsernameOk = usernameOk;
     }
 
+    public int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    public boolean isDrainMode() {
+        return this.drainMode;
+    }
+
+    /**
+     * @param drainMode true to consume the whole inbox on each watch event (default), false to consume one message per
+     *                  event as the first versions did.
+     */
+    public void setDrainMode(boolean drainMode) {
+        this.drainMode = drainMode;
+    }
+
+    /**
+     * @param pollingMode true to wait for the answers of the master by polling the request node every 50ms as the
+     *                    first versions did, false (default) to have them delivered by the watcher.
+     */
+    public void setPollingMode(boolean pollingMode) {
+        this.pollingMode = pollingMode;
+    }
+
+    public int getInboxDepth() {
+        return this.inboxDepth;
+    }
+
+    public int getMaxDrainBatchSize() {
+        return this.maxDrainBatchSize;
+    }
+
+    public long getDrainedBatches() {
+        return this.drainedBatches;
+    }
+
+    public long getDrainedMessages() {
+        return this.drainedMessages;
+    }
+
     public String getId() {
         return this.id;
     }
@@ -233,10 +302,10 @@ public class Worker implements Watcher {
         zoo.create(enrollUserPath, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
 
         // set a watcher to be triggered when request result is ready and show the corresponding informative message
-        zoo.getData(enrollUserPath, this, null);
+        CompletableFuture<byte[]> response = watchResponse(enrollUserPath);
 
         // wait for the default code to be changed
-        byte[] enrollmentCode = waitForUpdatedCode(enrollUserPath);
+        byte[] enrollmentCode = waitForUpdatedCode(enrollUserPath, response);
 
         // show corresponding message if timeout is reached
         boolean timeoutReached = Arrays.equals(enrollmentCode, ZooHelper.Codes.NEW_CHILD);
@@ -266,10 +335,10 @@ public class Worker implements Watcher {
         zoo.create(quitUserPath, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
 
         // set a watcher to be triggered when request result is ready and show the corresponding informative message
-        zoo.getData(quitUserPath, this, null);
+        CompletableFuture<byte[]> response = watchResponse(quitUserPath);
 
         // wait for the default code to be changed
-        byte[] quitCode = waitForUpdatedCode(quitUserPath);
+        byte[] quitCode = waitForUpdatedCode(quitUserPath, response);
 
         // show corresponding message if timeout is reached
         boolean timeoutReached = Arrays.equals(quitCode, ZooHelper.Codes.NEW_CHILD);
@@ -301,10 +370,10 @@ public class Worker implements Watcher {
         }
 
         // set a watcher to be triggered when result is available and to output the appropriate informative message
-        zoo.exists(onlineUserPath, this);
+        CompletableFuture<byte[]> response = watchResponse(onlineUserPath);
 
         // wait for the default code to be changed
-        byte[] onlineCode = waitForUpdatedCode(onlineUserPath);
+        byte[] onlineCode = waitForUpdatedCode(onlineUserPath, response);
 
         // delete the request in case it is invalid and return negative outcome
         if (!Arrays.equals(onlineCode, ZooHelper.Codes.SUCCESS)) {
@@ -322,20 +391,25 @@ public class Worker implements Watcher {
         // otherwise look if there are unread messages for the user,
         // in that case the master moved them to the queue: read them
         try {
-            List<String> unreadMessages = zoo.getChildren(queueUserPath, false);
-            if (unreadMessages.size() > 0) {
-                for (String message : unreadMessages) {
-                    ZooHelper.print("<INFO> New Unread Message: "
-                            + message.split(">")[1].replaceAll("[0-9]{10}", ""));
-                }
+            int buckets = InboxLayout.bucketCount(zoo.getData(queueUserPath, false, null));
+            inboxParents = InboxLayout.parents(queueUserPath, buckets);
+
+            for (String messagePath : InboxLayout.listMessages(zoo, queueUserPath)) {
+                String nodeId = messagePath.substring(messagePath.lastIndexOf('/') + 1);
+                Message message = MessageCodec.decode(nodeId, zoo.getData(messagePath, false, null));
+                ZooHelper.print("<INFO> New Unread Message: " + message.getText());
             }
         } catch (KeeperException | InterruptedException e) {
             e.printStackTrace();
         }
 
         // once read all the old messages, set watcher for possible new incoming messages
+        // (in drain mode the old messages are also delivered and removed before the watcher is set)
         try {
-            zoo.getChildren(queueUserPath, this);
+            if (drainMode)
+                drainInbox(inboxParents);
+            else
+                for (String parent : inboxParents) zoo.getChildren(parent, this);
         } catch (KeeperException | InterruptedException e) {
             e.printStackTrace();
         }
@@ -347,8 +421,9 @@ public class Worker implements Watcher {
 
     /**
      * The method sends a message to the specified user.
-     * Specifically, creates an ephemeral sequential znode in the queue of the receiver with an id of the form:
-     * 'idSender:message'.
+     * Specifically, creates an ephemeral sequential znode "m<sequence>" in the queue of the receiver (in the bucket of
+     * the sender if the queue is sharded, see {@link InboxLayout}) whose data is the message encoded by
+     * {@link MessageCodec}.
      * @param idReceiver The id of the receiver. Please notice that the validity of this parameter must be checked prior
      *                   to the invocation of this method.
      * @param message The content of the message.
@@ -362,8 +437,98 @@ public class Worker implements Watcher {
             return;
         }
 
-        zoo.create("/queue/" + idReceiver + "/" + this.id + ">"
-                + message, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        byte[] data = MessageCodec.encode(Message.text(this.id, message));
+        String parent = InboxLayout.messageParent(zoo, idReceiver, this.id);
+        try {
+            zoo.create(parent + "/" + MessageCodec.NODE_PREFIX, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL);
+        } catch (KeeperException.NoNodeException e) {
+            // the layout of the inbox may have changed since it was cached: retry once if it did
+            InboxLayout.forget(idReceiver);
+            String currentParent = InboxLayout.messageParent(zoo, idReceiver, this.id);
+            if (currentParent.equals(parent))
+                throw e;
+            zoo.create(currentParent + "/" + MessageCodec.NODE_PREFIX, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL);
+        }
+    }
+
+    /**
+     * The method sends a message to the specified user without waiting for ZooKeeper to answer.
+     * See {@link AsyncMessageSender} for the details.
+     * @param idReceiver The id of the receiver.
+     * @param message The content of the message.
+     * @return A future completed with the path of the created message node once ZooKeeper has processed the request.
+     */
+    public CompletableFuture<String> writeAsync(String idReceiver, String message) {
+        return asyncSender.send(idReceiver, message);
+    }
+
+    /**
+     * The method sends a group of messages, possibly to several receivers, with as few round trips as possible.
+     * Specifically, the online check is done once for the whole group and the messages are created in the queues of
+     * their receivers with ZooKeeper multi() transactions of at most maxBatchSize operations each.
+     * Since a transaction fails as a whole, a chunk that fails (e.g. because one of the receivers went offline in the
+     * meanwhile) is sent again one message at a time, so that only the messages of the missing receivers are lost.
+     * @param messages The messages to be sent. Please notice that the validity of the receivers must be checked prior
+     *                 to the invocation of this method.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    public void writeBatch(List<OutgoingMessage> messages) throws KeeperException, InterruptedException {
+
+        if (messages.isEmpty())
+            return;
+
+        if (!zooHelper.exists("/online/" + this.id)) {
+            ZooHelper.print("<ERROR> You are not online. Go online first!");
+            return;
+        }
+
+        List<Op> chunk = new ArrayList<>(Math.min(messages.size(), maxBatchSize));
+        for (OutgoingMessage message : messages) {
+            String parent = InboxLayout.messageParent(zoo, message.getReceiver(), this.id);
+            chunk.add(Op.create(parent + "/" + MessageCodec.NODE_PREFIX,
+                    MessageCodec.encode(Message.text(this.id, message.getContent())), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL));
+
+            if (chunk.size() == maxBatchSize) {
+                commitChunk(chunk);
+                chunk.clear();
+            }
+        }
+
+        if (!chunk.isEmpty())
+            commitChunk(chunk);
+    }
+
+    /**
+     * Commits a chunk of create operations in a single transaction, falling back to one create per operation if the
+     * transaction is rejected.
+     * @param chunk The create operations to be committed.
+     * @throws InterruptedException -
+     */
+    private void commitChunk(List<Op> chunk) throws InterruptedException {
+
+        try {
+            zoo.multi(chunk);
+            return;
+        } catch (KeeperException e) {
+            if (chunk.size() == 1) {
+                InboxLayout.forget(InboxLayout.receiverOf(chunk.get(0).getPath()));
+                ZooHelper.print("<ERROR> Message to " + chunk.get(0).getPath() + " could not be sent: " + e.getMessage());
+                return;
+            }
+        }
+
+        for (Op op : chunk) {
+            try {
+                zoo.multi(Collections.singletonList(op));
+            } catch (KeeperException e) {
+                InboxLayout.forget(InboxLayout.receiverOf(op.getPath()));
+                ZooHelper.print("<ERROR> Message to " + op.getPath() + " could not be sent: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -373,8 +538,191 @@ public class Worker implements Watcher {
         //ZooHelper.print(sender  + ": " +  message);
     }
 
+    /**
+     * The method consumes the whole inbox of the user, or some of its buckets.
+     * Specifically, it lists the given parents, delivers the messages to read() in order and deletes them in batches,
+     * repeating until they are found empty. Only then the watchers for new messages are set again, so that a burst
+     * of messages costs one watch event instead of one per message.
+     * @param parents The nodes to drain: "/queue/ID" and/or its buckets.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    private void drainInbox(List<String> parents) throws KeeperException, InterruptedException {
+
+        List<String> messagePaths = listInbox(parents, false);
+        if (!messagePaths.isEmpty())
+            inboxFilled();
+        while (!messagePaths.isEmpty()) {
+            drain(messagePaths, parents.size() > 1);
+            messagePaths = listInbox(parents, false);
+        }
+
+        // messages arriving between the last listing and this one do not fire the new watcher: drain them as well
+        // (their deletion fires it, and the next drain will just find the queue empty)
+        messagePaths = listInbox(parents, true);
+        if (!messagePaths.isEmpty()) {
+            inboxFilled();
+            drain(messagePaths, parents.size() > 1);
+        } else {
+            inboxDrained();
+        }
+    }
+
+    /**
+     * Called when a drain finds messages in the inbox, before they are handed to read().
+     */
+    protected void inboxFilled() { }
+
+    /**
+     * Called when a drain found the nodes it drains empty (of the whole inbox, or of one of its buckets).
+     */
+    protected void inboxDrained() { }
+
+    /**
+     * @return true if no message is left in the inbox: all the messages received so far were handed to read().
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    protected boolean isInboxEmpty() throws KeeperException, InterruptedException {
+        return listInbox(inboxParents, false).isEmpty();
+    }
+
+    /**
+     * @param parents Nodes of the inbox of the user.
+     * @param watch true to set the watcher for new messages on each of them.
+     * @return The full paths of the messages found under the given nodes (buckets are skipped).
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    private List<String> listInbox(List<String> parents, boolean watch) throws KeeperException, InterruptedException {
+
+        List<String> messagePaths = new ArrayList<>();
+        for (String parent : parents) {
+            List<String> children;
+            try {
+                children = watch ? zoo.getChildren(parent, this) : zoo.getChildren(parent, false);
+            } catch (KeeperException.NoNodeException e) {
+                continue;
+            }
+
+            for (String child : children)
+                if (!InboxLayout.isBucket(child)) messagePaths.add(parent + "/" + child);
+        }
+
+        return messagePaths;
+    }
+
+    /**
+     * Delivers and deletes a listing of the inbox.
+     * Messages of a single parent are delivered in sequence order. When several buckets are drained together (i.e. at
+     * login) they are merged by sending time first, since sequence numbers of different buckets are unrelated.
+     * @param messagePaths The full paths of the message nodes found in the inbox.
+     * @param merge true if the messages come from more than one parent.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    private void drain(List<String> messagePaths, boolean merge) throws KeeperException, InterruptedException {
+
+        inboxDepth = messagePaths.size();
+
+        List<InboxEntry> entries = new ArrayList<>(messagePaths.size());
+        for (String messagePath : messagePaths) {
+            String nodeId = messagePath.substring(messagePath.lastIndexOf('/') + 1);
+            try {
+                Message message = MessageCodec.decode(nodeId, zoo.getData(messagePath, false, null));
+                entries.add(new InboxEntry(messagePath, MessageCodec.sequenceOf(nodeId), message));
+            } catch (KeeperException.NoNodeException ignored) {
+                // the message was ephemeral and its sender's session is gone
+            }
+        }
+
+        Comparator<InboxEntry> bySequence = Comparator.comparingLong(entry -> entry.sequence);
+        entries.sort(merge
+                ? Comparator.<InboxEntry>comparingLong(entry -> entry.message.getTimestamp()).thenComparing(bySequence)
+                : bySequence);
+
+        List<Op> deletes = new ArrayList<>(entries.size());
+        for (InboxEntry entry : entries) {
+            deliver(entry.message);
+            deletes.add(Op.delete(entry.path, -1));
+        }
+
+        for (int from = 0; from < deletes.size(); from += maxBatchSize) {
+            List<Op> chunk = deletes.subList(from, Math.min(from + maxBatchSize, deletes.size()));
+            try {
+                zoo.multi(chunk);
+            } catch (KeeperException e) {
+                // some message disappeared in the meanwhile: delete the others one by one
+                for (Op op : chunk) {
+                    try {
+                        zoo.delete(op.getPath(), -1);
+                    } catch (KeeperException.NoNodeException ignored) { }
+                }
+            }
+        }
+
+        PerformanceEvaluator.readMessages += deletes.size();
+        maxDrainBatchSize = Math.max(maxDrainBatchSize, deletes.size());
+        drainedMessages += deletes.size();
+        drainedBatches++;
+    }
+
+    /**
+     * A message read from the inbox, waiting to be delivered.
+     */
+    private static class InboxEntry {
+        private final String path;
+        private final long sequence;
+        private final Message message;
+
+        InboxEntry(String path, long sequence, Message message) {
+            this.path = path;
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Hands a message taken from the queue to read(), keeping track of the time it spent travelling.
+     * @param message The decoded message.
+     */
+    private void deliver(Message message) {
+
+        // legacy messages do not carry their sending time
+        if (message.getTimestamp() > 0) {
+            PerformanceEvaluator.totalReceivingTime += System.currentTimeMillis() - message.getTimestamp();
+            PerformanceEvaluator.receivedMessages++;
+        }
+
+        this.read(message.getSender(), message.getText());
+    }
+
+    /**
+     * The method makes the user go offline without closing the ZooKeeper session, which may be shared with other users.
+     * Specifically, it deletes the node in "/online" (the master then moves the unread messages to the backup) and
+     * stops this worker from reacting to the watchers it left on the session, since they cannot be removed.
+     * @return true or false depending if the user could be taken offline or not.
+     */
+    public boolean logout() {
+        this.closed = true;
+        for (CompletableFuture<byte[]> response : pendingResponses.values())
+            response.cancel(false);
+        pendingResponses.clear();
+
+        try {
+            this.zoo.delete(onlineUserPath, -1);
+        } catch (KeeperException.NoNodeException ignored) {
+            // never logged in, or already offline
+        } catch (Exception e) {
+            System.out.println("<ERROR>: trying to logout zoo worker. Error: "+ e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
     // When clients wants to leave => the zookeeper instance kills ephemeral nodes and make invalid the session
     public boolean disconnect(){
+        this.closed = true;
         try {
             this.zoo.close();
         } catch (Exception e) {
@@ -386,14 +734,64 @@ public class Worker implements Watcher {
 
     /* UTILS **********************************************************************************************************/
 
+    /**
+     * The method sets a watcher on a request node and returns the future that will receive the answer of the master,
+     * i.e. the updated code of the node. If the master already answered, the future is completed right away.
+     * @param path The path of the request node.
+     * @return The future completed with the updated code of the node (null if the node has been deleted).
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    private CompletableFuture<byte[]> watchResponse(String path) throws KeeperException, InterruptedException {
+
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        pendingResponses.put(path, response);
+
+        byte[] code = zoo.getData(path, this, null);
+        if (!Arrays.equals(code, ZooHelper.Codes.NEW_CHILD)) {
+            pendingResponses.remove(path);
+            response.complete(code);
+        }
+
+        return response;
+    }
+
     /**
      * The method waits for the original code of the znode at the specified node to change and returns the updated code
      * as soon as it is available.
      * @param path The path of the znode.
+     * @param response The future set by {@link #watchResponse(String)} for the same znode.
      * @return The updated code of the znode specified in input. Please notice that if the timeout is reached the method
      * can return the default code.
      */
-    private byte[] waitForUpdatedCode(String path) throws InterruptedException {
+    private byte[] waitForUpdatedCode(String path, CompletableFuture<byte[]> response) throws InterruptedException {
+
+        if (pollingMode)
+            return pollForUpdatedCode(path);
+
+        long halfTimeout = ZooHelper.TIMEOUT_IN_NANOS / 2;
+        try {
+            try {
+                return response.get(halfTimeout, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                ZooHelper.print("<WARNING> It seems the master is not responding. The system will wait for 15secs" +
+                        "more before deleting your request");
+            }
+            return response.get(ZooHelper.TIMEOUT_IN_NANOS - halfTimeout, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // read the code one last time in case the notification got lost (e.g. connection loss)
+            pendingResponses.remove(path);
+            return zooHelper.getCode(path);
+        }
+    }
+
+    /**
+     * The method polls the znode at the specified path every 50ms until its original code changes or the timeout is
+     * reached. Only used in polling mode.
+     * @param path The path of the znode.
+     * @return The updated code of the znode specified in input, or the default code if the timeout is reached.
+     */
+    private byte[] pollForUpdatedCode(String path) throws InterruptedException {
 
         byte[] resultCode;
         long elapsedTime;
@@ -430,10 +828,20 @@ public class Worker implements Watcher {
 
         EventType triggerEvent = watchedEvent.getType();
         String triggerPath = watchedEvent.getPath();
-        byte[] triggerCode = zooHelper.getCode(triggerPath);
 
-        //if (triggerPath == null)
-        //    return;
+        // a closed worker may still receive the events of the watchers it left on a shared session
+        if (triggerPath == null || closed)
+            return;
+
+        // the code is only needed for request results: hand it to the thread waiting for it (if any)
+        byte[] triggerCode = null;
+        if (triggerEvent == EventType.NodeDataChanged || triggerEvent == EventType.NodeDeleted) {
+            triggerCode = triggerEvent == EventType.NodeDeleted ? null : zooHelper.getCode(triggerPath);
+
+            CompletableFuture<byte[]> response = pendingResponses.remove(triggerPath);
+            if (response != null)
+                response.complete(triggerCode);
+        }
 
         boolean newEnrollmentRequestResult = triggerPath.contains("/enroll")
                 && ( triggerEvent == EventType.NodeDataChanged );
@@ -441,7 +849,7 @@ public class Worker implements Watcher {
                 && ( triggerEvent == EventType.NodeDataChanged );
         boolean newLoginRequestResult = triggerPath.contains("/online")
                 && ( triggerEvent == EventType.NodeDataChanged );
-        boolean newMessageReceived = triggerPath.contains("/queue/" + this.id)
+        boolean newMessageReceived = inboxParents.contains(triggerPath)
                 && ( triggerEvent == EventType.NodeChildrenChanged );
 
         // NEW ENROLLMENT REQUEST RESULT
@@ -485,14 +893,25 @@ public class Worker implements Watcher {
         // NEW MESSAGE RECEIVED
         if (newMessageReceived) {
             try {
-                PerformanceEvaluator.readMessages++;
-                String nodeId = zoo.getChildren(triggerPath, false).get(0);
-                //ZooHelper.print("New message received at " + nodeId);
-                this.read(ZooHelper.getSender(nodeId), ZooHelper.getMessage(nodeId));
-
-                // after having read the message, delete it and set the watcher for the next one
-                zoo.delete(triggerPath + "/" + nodeId, -1);
-                zoo.getChildren("/queue/" + this.id, this);
+                if (drainMode) {
+                    drainInbox(Collections.singletonList(triggerPath));
+                    return;
+                }
+
+                List<String> messagePaths = listInbox(Collections.singletonList(triggerPath), false);
+                if (!messagePaths.isEmpty()) {
+                    PerformanceEvaluator.readMessages++;
+                    String messagePath = messagePaths.get(0);
+                    String nodeId = messagePath.substring(messagePath.lastIndexOf('/') + 1);
+                    //ZooHelper.print("New message received at " + nodeId);
+                    deliver(MessageCodec.decode(nodeId, zoo.getData(messagePath, false, null)));
+
+                    // after having read the message, delete it
+                    zoo.delete(messagePath, -1);
+                }
+
+                // set the watcher for the next one
+                zoo.getChildren(triggerPath, this);
             } catch (KeeperException | InterruptedException e) {
                 e.printStackTrace();
             }
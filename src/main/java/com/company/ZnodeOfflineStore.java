@@ -0,0 +1,61 @@
+package com.company;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.BitSet;
+
+/**
+ * Keeps the offline messages of a user as persistent znodes under "/backup/ID".
+ */
+class ZnodeOfflineStore implements OfflineStore {
+
+    private final ZooKeeper zoo;
+    private final ZooHelper zooHelper;
+    private final InboxTransfer transfer;
+
+    ZnodeOfflineStore(ZooKeeper zoo) {
+        this.zoo = zoo;
+        this.zooHelper = new ZooHelper(zoo);
+        this.transfer = new InboxTransfer(zoo);
+    }
+
+    @Override
+    public int backup(String user) throws KeeperException, InterruptedException {
+        return transfer.toBackup(user);
+    }
+
+    @Override
+    public int restore(String user) throws KeeperException, InterruptedException {
+
+        String backupUserPath = "/backup/" + user;
+        if (zooHelper.exists(backupUserPath))
+            return transfer.toQueue(user);
+
+        // in any case leave an empty /backup/ID znode
+        try {
+            zoo.create(backupUserPath, ZooHelper.Codes.NEW_CHILD, ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException ignored) { }
+        return 0;
+    }
+
+    @Override
+    public void remove(String user) throws KeeperException, InterruptedException {
+        if (zooHelper.exists("/backup/" + user))
+            transfer.deleteSubtree("/backup/" + user);
+    }
+
+    @Override
+    public void clear() throws KeeperException, InterruptedException {
+        if (zooHelper.exists("/backup"))
+            transfer.deleteSubtree("/backup");
+    }
+
+    @Override
+    public void acquire(BitSet partitions) { }
+
+    @Override
+    public void release(BitSet partitions) { }
+}
@@ -86,29 +86,6 @@ public class ZooHelper {
         }
     }
 
-    static String getSender(String nodeId) {
-        return nodeId.split(">")[0];
-    }
-
-    static String getMessage(String nodeId) {
-
-        String message = nodeId.split(">")[1].replaceAll("[0-9]{10}", "");
-
-        try {
-            String stringTime = nodeId.split(">")[2];
-            long time = Long.parseLong(stringTime);
-            long elapsedTime = new Date().getTime() - time;
-
-            PerformanceEvaluator.totalReceivingTime += elapsedTime;
-            PerformanceEvaluator.receivedMessages++;
-
-        } catch (ArrayIndexOutOfBoundsException ignored) {
-            // in case we are not testing there is not another field
-        }
-
-        return message;
-    }
-
     static String timestamp() {
         return "[" + new SimpleDateFormat("HH:mm:ss.SSS").format(new Date()) + "] ";
     }
@@ -0,0 +1,168 @@
+package websocket;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Reads and writes the frames of the binary chat protocol, the compact alternative to the JSON frames for the clients
+ * that register with a binary frame.
+ *
+ * A frame is a type byte followed by its fields, in a fixed order. Names (users) are UTF-8 strings prefixed by their
+ * length on 2 bytes, texts are prefixed by their length on 4 bytes, numbers are big-endian. The client numbers its
+ * chat frames: the confirmation (or the error) of a message only carries its id.
+ *
+ * Client frames:
+ * - REGISTRATION: [username]
+ * - CHAT: [id (4)][dest][text]  (the sender is the registered user)
+ * - HISTORY: [with][before (8), Long.MAX_VALUE for the last messages][limit (2)]
+ * Server frames:
+ * - REGISTERED: nothing
+ * - DELIVERY: [timestamp (8)][sender][text]  (the destination is the registered user)
+ * - CONFIRMATION: [id (4)]
+ * - ERROR: [id (4), 0 if the error is not about a chat frame][text]
+ * - HISTORY_PAGE: [with][more (1)][count (2)] then count times [timestamp (8)][sender][text], oldest first
+ */
+public final class BinaryFrameCodec {
+
+    public static final byte REGISTRATION = 1;
+    public static final byte CHAT = 2;
+    public static final byte HISTORY = 3;
+
+    public static final byte REGISTERED = (byte) 0x81;
+    public static final byte DELIVERY = (byte) 0x82;
+    public static final byte CONFIRMATION = (byte) 0x83;
+    public static final byte ERROR = (byte) 0x84;
+    public static final byte HISTORY_PAGE = (byte) 0x85;
+
+    private static final ThreadLocal<ChatFrameCodec.Frame> FRAME = ThreadLocal.withInitial(ChatFrameCodec.Frame::new);
+
+    private BinaryFrameCodec() { }
+
+    /* DECODING *******************************************************************************************************/
+
+    /**
+     * @param data A binary frame.
+     * @return The fields of the frame (the type as in the JSON frames), valid until the next call on this thread.
+     * @throws IllegalArgumentException If the frame is malformed or of an unknown type.
+     */
+    public static ChatFrameCodec.Frame decode(ByteBuffer data) {
+        ChatFrameCodec.Frame frame = FRAME.get();
+        frame.reset();
+        try {
+            byte type = data.get();
+            switch (type) {
+                case REGISTRATION:
+                    frame.type = "registration";
+                    frame.username = readName(data);
+                    break;
+                case CHAT:
+                    frame.type = "chat";
+                    frame.id = data.getInt() & 0xffffffffL;
+                    frame.dest = readName(data);
+                    frame.msg = readText(data);
+                    break;
+                case HISTORY:
+                    frame.type = "history";
+                    frame.with = readName(data);
+                    frame.before = data.getLong();
+                    frame.limit = data.getShort() & 0xffff;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown frame type " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        return frame;
+    }
+
+    private static String readName(ByteBuffer data) {
+        return readString(data, data.getShort() & 0xffff);
+    }
+
+    private static String readText(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0)
+            throw new IllegalArgumentException("Invalid text length " + length);
+        return readString(data, length);
+    }
+
+    private static String readString(ByteBuffer data, int length) {
+        if (length > data.remaining())
+            throw new BufferUnderflowException();
+        String value;
+        if (data.hasArray()) {
+            value = new String(data.array(), data.arrayOffset() + data.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            data.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        data.position(data.position() + length);
+        return value;
+    }
+
+    /* ENCODING *******************************************************************************************************/
+
+    public static ByteBuffer registered() {
+        return ByteBuffer.wrap(new byte[]{REGISTERED});
+    }
+
+    public static ByteBuffer delivery(String sender, String text, long timestamp) {
+        byte[] senderBytes = name(sender);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(1 + 8 + 2 + senderBytes.length + 4 + textBytes.length);
+        frame.put(DELIVERY).putLong(timestamp);
+        frame.putShort((short) senderBytes.length).put(senderBytes);
+        frame.putInt(textBytes.length).put(textBytes);
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer confirmation(long id) {
+        ByteBuffer frame = ByteBuffer.allocate(1 + 4);
+        frame.put(CONFIRMATION).putInt((int) id);
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer error(long id, String message) {
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(1 + 4 + 4 + messageBytes.length);
+        frame.put(ERROR).putInt((int) Math.max(0, id)).putInt(messageBytes.length).put(messageBytes);
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer history(String with, List<HistoryStore.Entry> entries, boolean more) {
+        byte[] withBytes = name(with);
+        int size = 1 + 2 + withBytes.length + 1 + 2;
+        byte[][] senders = new byte[entries.size()][];
+        byte[][] texts = new byte[entries.size()][];
+        for (int i = 0; i < entries.size(); i++) {
+            senders[i] = name(entries.get(i).getSender());
+            texts[i] = entries.get(i).getText().getBytes(StandardCharsets.UTF_8);
+            size += 8 + 2 + senders[i].length + 4 + texts[i].length;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.put(HISTORY_PAGE).putShort((short) withBytes.length).put(withBytes);
+        frame.put((byte) (more ? 1 : 0)).putShort((short) entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            frame.putLong(entries.get(i).getTimestamp());
+            frame.putShort((short) senders[i].length).put(senders[i]);
+            frame.putInt(texts[i].length).put(texts[i]);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static byte[] name(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff)
+            throw new IllegalArgumentException("Name too long: " + name.substring(0, 32) + "...");
+        return bytes;
+    }
+}
@@ -0,0 +1,370 @@
+package websocket;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reads and writes the JSON frames of the chat protocol without building JSON objects.
+ *
+ * Inbound frames are flat objects: the known fields are copied into a {@link Frame} reused by the thread (nested values
+ * and unknown fields are skipped), the others are ignored. Outbound frames are written into a builder reused by the
+ * thread. Both are meant to be used from the callbacks of the websocket server, one frame at a time per thread.
+ */
+public final class ChatFrameCodec {
+
+    private static final int MAX_KEPT_BUILDER = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    private static final ThreadLocal<Frame> FRAME = ThreadLocal.withInitial(Frame::new);
+
+    private ChatFrameCodec() { }
+
+    /**
+     * The fields of an inbound frame (null, or NO_NUMBER, when missing).
+     */
+    public static final class Frame {
+
+        public static final long NO_NUMBER = Long.MIN_VALUE;
+
+        public String type, username, sender, dest, msg, with;
+        public long before, limit;
+        // the number given by a binary client to its chat frame (see BinaryFrameCodec)
+        public long id;
+
+        void reset() {
+            type = username = sender = dest = msg = with = null;
+            before = limit = id = NO_NUMBER;
+        }
+    }
+
+    /* DECODING *******************************************************************************************************/
+
+    /**
+     * @param data A text frame.
+     * @return The fields of the frame, valid until the next call on this thread.
+     * @throws IllegalArgumentException If the frame is not a JSON object.
+     */
+    public static Frame decode(String data) {
+        Frame frame = FRAME.get();
+        frame.reset();
+        new Reader(data, BUILDER.get()).readFrame(frame);
+        return frame;
+    }
+
+    private static final class Reader {
+        private final String data;
+        private final StringBuilder scratch;
+        private int position;
+
+        Reader(String data, StringBuilder scratch) {
+            this.data = data;
+            this.scratch = scratch;
+        }
+
+        void readFrame(Frame frame) {
+            expect('{');
+            if (peek() == '}') {
+                position++;
+                return;
+            }
+            while (true) {
+                String key = readString();
+                expect(':');
+                skipSpaces();
+                switch (key) {
+                    case "type": frame.type = readStringOrSkip(); break;
+                    case "username": frame.username = readStringOrSkip(); break;
+                    case "sender": frame.sender = readStringOrSkip(); break;
+                    case "dest": frame.dest = readStringOrSkip(); break;
+                    case "msg": frame.msg = readStringOrSkip(); break;
+                    case "with": frame.with = readStringOrSkip(); break;
+                    case "before": frame.before = readNumberOrSkip(); break;
+                    case "limit": frame.limit = readNumberOrSkip(); break;
+                    default: skipValue();
+                }
+                char next = next();
+                if (next == '}')
+                    return;
+                if (next != ',')
+                    throw error("',' or '}'");
+            }
+        }
+
+        private String readStringOrSkip() {
+            if (peek() == '"')
+                return readString();
+            skipValue();
+            return null;
+        }
+
+        private long readNumberOrSkip() {
+            char c = peek();
+            if (c != '-' && (c < '0' || c > '9')) {
+                skipValue();
+                return Frame.NO_NUMBER;
+            }
+            int start = position;
+            skipNumber();
+            String number = data.substring(start, position);
+            try {
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                return (long) Double.parseDouble(number);
+            }
+        }
+
+        private String readString() {
+            expect('"');
+            int start = position;
+            // fast path: no escape sequence
+            while (position < data.length()) {
+                char c = data.charAt(position);
+                if (c == '"')
+                    return data.substring(start, position++);
+                if (c == '\\')
+                    break;
+                position++;
+            }
+
+            StringBuilder builder = scratch;
+            builder.setLength(0);
+            builder.append(data, start, position);
+            while (true) {
+                char c = charAt(position++);
+                if (c == '"')
+                    break;
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+                char escaped = charAt(position++);
+                switch (escaped) {
+                    case 'b': builder.append('\b'); break;
+                    case 'f': builder.append('\f'); break;
+                    case 'n': builder.append('\n'); break;
+                    case 'r': builder.append('\r'); break;
+                    case 't': builder.append('\t'); break;
+                    case 'u':
+                        if (position + 4 > data.length())
+                            throw error("4 hex digits");
+                        builder.append((char) Integer.parseInt(data.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default: builder.append(escaped);
+                }
+            }
+            return builder.toString();
+        }
+
+        private void skipValue() {
+            skipSpaces();
+            char c = charAt(position);
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                // nested values: only the strings need care
+                int depth = 0;
+                do {
+                    c = charAt(position);
+                    if (c == '"') {
+                        skipString();
+                        continue;
+                    }
+                    if (c == '{' || c == '[') depth++;
+                    else if (c == '}' || c == ']') depth--;
+                    position++;
+                } while (depth > 0);
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                skipNumber();
+            } else if (data.startsWith("true", position)) {
+                position += 4;
+            } else if (data.startsWith("false", position)) {
+                position += 5;
+            } else if (data.startsWith("null", position)) {
+                position += 4;
+            } else {
+                throw error("a value");
+            }
+        }
+
+        private void skipString() {
+            position++;
+            while (true) {
+                char c = charAt(position++);
+                if (c == '"') return;
+                if (c == '\\') position++;
+            }
+        }
+
+        private void skipNumber() {
+            while (position < data.length() && "+-0123456789.eE".indexOf(data.charAt(position)) >= 0)
+                position++;
+        }
+
+        private void expect(char expected) {
+            if (next() != expected)
+                throw error("'" + expected + "'");
+        }
+
+        private char next() {
+            skipSpaces();
+            return charAt(position++);
+        }
+
+        private char peek() {
+            skipSpaces();
+            return charAt(position);
+        }
+
+        private void skipSpaces() {
+            while (position < data.length() && Character.isWhitespace(data.charAt(position)))
+                position++;
+        }
+
+        private char charAt(int index) {
+            if (index >= data.length())
+                throw error("more data");
+            return data.charAt(index);
+        }
+
+        private IllegalArgumentException error(String expected) {
+            return new IllegalArgumentException("Invalid frame, expected " + expected + " at " + position);
+        }
+    }
+
+    /* ENCODING *******************************************************************************************************/
+
+    // {"type":"chat","sender":...,"dest":...,"message":...,"timestamp":...}
+    public static String chat(String sender, String dest, String message, long timestamp) {
+        StringBuilder builder = builder();
+        builder.append("{\"type\":\"chat\"");
+        field(builder, "sender", sender);
+        field(builder, "dest", dest);
+        field(builder, "message", message);
+        builder.append(",\"timestamp\":").append(timestamp).append('}');
+        return release(builder);
+    }
+
+    // {"type":"confirmation","additional_message":DATA} where DATA is the (escaped) frame confirmed
+    public static String confirmation(String data) {
+        return reply("confirmation", data);
+    }
+
+    // {"type":"error","additional_message":...}
+    public static String error(String message) {
+        return reply("error", message);
+    }
+
+    // {"type":"registration","status":"registered","additional_message":...}
+    public static String registered(String message) {
+        StringBuilder builder = builder();
+        builder.append("{\"type\":\"registration\",\"status\":\"registered\"");
+        field(builder, "additional_message", message);
+        builder.append('}');
+        return release(builder);
+    }
+
+    // {"type":"history","with":...,"messages":[{"sender","dest","message","timestamp"}...],"more":...}
+    public static String history(String user, String with, List<HistoryStore.Entry> entries, boolean more) {
+        StringBuilder builder = builder();
+        builder.append("{\"type\":\"history\"");
+        field(builder, "with", with);
+        builder.append(",\"messages\":[");
+        for (int i = 0; i < entries.size(); i++) {
+            HistoryStore.Entry entry = entries.get(i);
+            builder.append(i == 0 ? "{" : ",{");
+            builder.append("\"sender\":");
+            string(builder, entry.getSender());
+            field(builder, "dest", entry.getSender().equals(with) ? user : with);
+            field(builder, "message", entry.getText());
+            builder.append(",\"timestamp\":").append(entry.getTimestamp()).append('}');
+        }
+        builder.append("],\"more\":").append(more).append('}');
+        return release(builder);
+    }
+
+    // {"type":"presence","users":[...]}: the users online
+    public static String presence(Collection<String> users) {
+        StringBuilder builder = builder();
+        builder.append("{\"type\":\"presence\"");
+        array(builder, "users", users);
+        builder.append('}');
+        return release(builder);
+    }
+
+    // {"type":"presence","joined":[...],"left":[...]}: the changes since the last presence frame
+    public static String presence(Collection<String> joined, Collection<String> left) {
+        StringBuilder builder = builder();
+        builder.append("{\"type\":\"presence\"");
+        array(builder, "joined", joined);
+        array(builder, "left", left);
+        builder.append('}');
+        return release(builder);
+    }
+
+    private static String reply(String type, String message) {
+        StringBuilder builder = builder();
+        builder.append("{\"type\":\"").append(type).append('"');
+        field(builder, "additional_message", message);
+        builder.append('}');
+        return release(builder);
+    }
+
+    private static StringBuilder builder() {
+        StringBuilder builder = BUILDER.get();
+        builder.setLength(0);
+        return builder;
+    }
+
+    // a builder that grew for a huge frame is not kept
+    private static String release(StringBuilder builder) {
+        String frame = builder.toString();
+        if (builder.capacity() > MAX_KEPT_BUILDER)
+            BUILDER.set(new StringBuilder(256));
+        return frame;
+    }
+
+    private static void field(StringBuilder builder, String key, String value) {
+        builder.append(",\"").append(key).append("\":");
+        string(builder, value);
+    }
+
+    private static void array(StringBuilder builder, String key, Collection<String> values) {
+        builder.append(",\"").append(key).append("\":[");
+        boolean first = true;
+        for (String value : values) {
+            if (!first) builder.append(',');
+            string(builder, value);
+            first = false;
+        }
+        builder.append(']');
+    }
+
+    private static void string(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != 0x2028 && c != 0x2029)
+                continue;
+
+            builder.append(value, start, i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                case '\b': builder.append("\\b"); break;
+                case '\f': builder.append("\\f"); break;
+                default: builder.append(String.format("\\u%04x", (int) c));
+            }
+            start = i + 1;
+        }
+        builder.append(value, start, value.length()).append('"');
+    }
+}
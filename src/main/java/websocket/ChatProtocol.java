@@ -0,0 +1,87 @@
+package websocket;
+
+import org.java_websocket.WebSocket;
+
+import java.util.List;
+
+/**
+ * The frames sent to a client, in the protocol it registered with: JSON (text frames, see {@link ChatFrameCodec}) or
+ * binary (see {@link BinaryFrameCodec}).
+ */
+public interface ChatProtocol {
+
+    ChatProtocol JSON = new ChatProtocol() {
+        @Override
+        public void registered(WebSocket client) {
+            client.send(ChatFrameCodec.registered("new_worker.getAddress().split('/')[1]"));
+        }
+
+        @Override
+        public void delivery(WebSocket client, String sender, String dest, String text, long timestamp) {
+            client.send(ChatFrameCodec.chat(sender, dest, text, timestamp));
+        }
+
+        @Override
+        public void confirmation(WebSocket client, long id, String data) {
+            client.send(ChatFrameCodec.confirmation(data));
+        }
+
+        @Override
+        public void error(WebSocket client, long id, String data, String message) {
+            client.send(ChatFrameCodec.error(data != null ? data : message));
+        }
+
+        @Override
+        public void history(WebSocket client, String user, String with, List<HistoryStore.Entry> entries, boolean more) {
+            client.send(ChatFrameCodec.history(user, with, entries, more));
+        }
+    };
+
+    ChatProtocol BINARY = new ChatProtocol() {
+        @Override
+        public void registered(WebSocket client) {
+            client.send(BinaryFrameCodec.registered());
+        }
+
+        @Override
+        public void delivery(WebSocket client, String sender, String dest, String text, long timestamp) {
+            client.send(BinaryFrameCodec.delivery(sender, text, timestamp));
+        }
+
+        @Override
+        public void confirmation(WebSocket client, long id, String data) {
+            client.send(BinaryFrameCodec.confirmation(id));
+        }
+
+        @Override
+        public void error(WebSocket client, long id, String data, String message) {
+            client.send(BinaryFrameCodec.error(id, message));
+        }
+
+        @Override
+        public void history(WebSocket client, String user, String with, List<HistoryStore.Entry> entries, boolean more) {
+            client.send(BinaryFrameCodec.history(with, entries, more));
+        }
+    };
+
+    void registered(WebSocket client);
+
+    void delivery(WebSocket client, String sender, String dest, String text, long timestamp);
+
+    /**
+     * Confirms a chat frame.
+     * @param id The number given to the frame by a binary client.
+     * @param data The frame as received from a JSON client (which gets it back).
+     */
+    void confirmation(WebSocket client, long id, String data);
+
+    /**
+     * Rejects a frame.
+     * @param id The number given to the frame by a binary client (NO_NUMBER if none).
+     * @param data The frame as received from a JSON client, echoed when the error is about a chat frame (or null).
+     * @param message The reason.
+     */
+    void error(WebSocket client, long id, String data, String message);
+
+    void history(WebSocket client, String user, String with, List<HistoryStore.Entry> entries, boolean more);
+}
@@ -0,0 +1,402 @@
+package websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The direct channel between the factories (gateways): a message to a user connected to another gateway is sent over
+ * TCP to that gateway, which delivers it to the user's socket and acknowledges it.
+ *
+ * A single selector thread runs the server socket and the connections to the other gateways, opened on the first
+ * message and kept. A frame is [length int][type byte][sequence long] followed by:
+ * - DELIVER: [sender][receiver][text], each a [length int][UTF-8 bytes];
+ * - ACK: [status byte], DELIVERED or NOT_HERE (the receiver is not, or no longer, connected to the gateway).
+ * The future of a message fails if the connection is lost or the ack does not come in time. If the message was never
+ * written to the connection the caller falls back to the ZooKeeper queue; otherwise the gateway may have delivered it,
+ * so the future fails with an {@link UnconfirmedException} and the message must not be sent again another way.
+ */
+public class GatewayLink implements Closeable {
+
+    public interface Receiver {
+        // Called on the selector thread: must not block. Returns false if the receiver is not connected here
+        boolean deliver(String sender, String receiver, String text);
+    }
+
+    // The message was written to the connection but not acknowledged: it may or may not have been delivered
+    public static class UnconfirmedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnconfirmedException(Throwable cause) {
+            super("no acknowledgement: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static final byte DELIVER = 1;
+    private static final byte ACK = 2;
+    private static final byte DELIVERED = 0;
+    private static final byte NOT_HERE = 1;
+
+    private static final int HEADER_BYTES = 4 + 1 + 8;
+    private static final int MAX_FRAME_BYTES = 1 << 20;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    // i.e. -Dgateway.link.timeout.ms=500
+    private static final long TIMEOUT_MILLIS = Long.getLong("gateway.link.timeout.ms", 2000);
+    private static final long SELECT_MILLIS = 250;
+
+    private final Receiver receiver;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final InetSocketAddress address;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    // the connections opened to the other gateways, used by the selector thread only
+    private final Map<InetSocketAddress, Connection> peers = new ConcurrentHashMap<>();
+    // what the other threads need the selector thread to do
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong notHere = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * Opens the server socket and starts the selector thread.
+     * @param port The port to listen on, 0 for any free port.
+     * @param host The host the other gateways reach this one at, null for the address of the local host.
+     * @param receiver Delivers the messages received to the users connected here.
+     * @throws IOException -
+     */
+    public GatewayLink(int port, String host, Receiver receiver) throws IOException {
+        this.receiver = receiver;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port));
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        this.address = new InetSocketAddress(host != null ? host : localHost(), server.socket().getLocalPort());
+        this.thread = new Thread(this::loop, "gateway-link");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private static String localHost() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            return "127.0.0.1";
+        }
+    }
+
+    // The address to publish for the other gateways
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Sends a message to a user connected to another gateway.
+     * @param gateway The address of the link of the gateway.
+     * @return A future completed with true once the gateway has delivered the message, with false if the receiver is not
+     * connected to it, or completed exceptionally if the gateway cannot be reached or does not answer in time.
+     */
+    public CompletableFuture<Boolean> send(InetSocketAddress gateway, String sender, String receiver, String text) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("link closed"));
+            return future;
+        }
+
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] receiverBytes = receiver.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 12 + senderBytes.length + receiverBytes.length + textBytes.length;
+        if (length > MAX_FRAME_BYTES) {
+            future.completeExceptionally(new IOException("message too long"));
+            return future;
+        }
+        long seq = sequence.incrementAndGet();
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(DELIVER).putLong(seq);
+        frame.putInt(senderBytes.length).put(senderBytes);
+        frame.putInt(receiverBytes.length).put(receiverBytes);
+        frame.putInt(textBytes.length).put(textBytes);
+        frame.flip();
+
+        tasks.add(() -> {
+            Connection connection = peers.get(gateway);
+            try {
+                if (connection == null)
+                    connection = connect(gateway);
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                future.completeExceptionally(e);
+                return;
+            }
+            connection.inflight.put(seq, new Inflight(future, System.currentTimeMillis() + TIMEOUT_MILLIS));
+            try {
+                connection.enqueue(frame);
+            } catch (IOException e) {
+                close(connection, e);
+            }
+        });
+        selector.wakeup();
+        return future;
+    }
+
+    private Connection connect(InetSocketAddress gateway) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connected = channel.connect(gateway);
+            Connection connection = new Connection(channel, gateway);
+            connection.key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+            peers.put(gateway, connection);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void loop() {
+        long nextSweep = System.currentTimeMillis() + SELECT_MILLIS;
+        while (!closed) {
+            try {
+                selector.select(SELECT_MILLIS);
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable())
+                        accept();
+                    else if (key.attachment() instanceof Connection)
+                        handle((Connection) key.attachment(), key);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    expire(now);
+                    nextSweep = now + SELECT_MILLIS;
+                }
+            } catch (IOException e) {
+                if (!closed)
+                    System.out.println("<ERROR> Gateway link: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel, null);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void handle(Connection connection, SelectionKey key) {
+        try {
+            if (key.isValid() && key.isConnectable() && connection.channel.finishConnect())
+                key.interestOps(connection.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            if (key.isValid() && key.isReadable())
+                read(connection);
+            if (key.isValid() && key.isWritable())
+                connection.flush();
+        } catch (IOException | RuntimeException e) {
+            close(connection, e);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        if (connection.channel.read(in) < 0)
+            throw new IOException("connection closed by the gateway");
+
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 1 + 8 || length > MAX_FRAME_BYTES)
+                throw new IOException("invalid frame length " + length);
+            if (in.remaining() < 4 + length)
+                break;
+
+            int end = in.position() + 4 + length;
+            in.position(in.position() + 4);
+            byte type = in.get();
+            long seq = in.getLong();
+            if (type == DELIVER) {
+                String sender = string(in);
+                String to = string(in);
+                String text = string(in);
+                received.incrementAndGet();
+                boolean delivered = receiver.deliver(sender, to, text);
+                ByteBuffer ack = ByteBuffer.allocate(HEADER_BYTES + 1);
+                ack.putInt(1 + 8 + 1).put(ACK).putLong(seq).put(delivered ? DELIVERED : NOT_HERE).flip();
+                connection.enqueue(ack);
+            } else if (type == ACK) {
+                Inflight inflight = connection.inflight.remove(seq);
+                boolean delivered = in.get() == DELIVERED;
+                if (inflight != null) {
+                    (delivered ? sent : notHere).incrementAndGet();
+                    inflight.future.complete(delivered);
+                }
+            } else {
+                throw new IOException("unknown frame type " + type);
+            }
+            in.position(end);
+        }
+        in.compact();
+
+        // room for a frame longer than the buffer
+        if (!in.hasRemaining() && in.capacity() < 4 + MAX_FRAME_BYTES) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(in.capacity() * 2, 4 + MAX_FRAME_BYTES));
+            in.flip();
+            larger.put(in);
+            connection.in = larger;
+        }
+    }
+
+    private static String string(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining())
+            throw new IOException("invalid string length " + length);
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    // A gateway that does not acknowledge in time is considered gone: its connection is closed and opened again later
+    private void expire(long now) {
+        for (Connection connection : peers.values()) {
+            for (Inflight inflight : connection.inflight.values()) {
+                if (inflight.deadline <= now) {
+                    close(connection, new TimeoutException("no acknowledgement from " + connection.peer + " in " + TIMEOUT_MILLIS + "ms"));
+                    break;
+                }
+            }
+        }
+    }
+
+    private void close(Connection connection, Exception cause) {
+        if (connection.peer != null) {
+            peers.remove(connection.peer, connection);
+            System.out.println("<WARNING> Gateway link to " + connection.peer + " closed: " + cause.getMessage());
+        }
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) { }
+        for (Inflight inflight : connection.inflight.values()) {
+            failed.incrementAndGet();
+            inflight.future.completeExceptionally(inflight.written ? new UnconfirmedException(cause) : cause);
+        }
+        connection.inflight.clear();
+    }
+
+    public String report() {
+        return "Gateway link messages sent: " + sent.get() + ", receiver not there: " + notHere.get()
+                + ", failed: " + failed.get() + ", received: " + received.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the messages queued meanwhile fail with their connection
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+        IOException cause = new IOException("link closed");
+        for (Connection connection : peers.values())
+            close(connection, cause);
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) { }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) { }
+    }
+
+    private static class Inflight {
+        private final CompletableFuture<Boolean> future;
+        private final long deadline;
+        // the whole frame went to the socket
+        private volatile boolean written;
+
+        Inflight(CompletableFuture<Boolean> future, long deadline) {
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+
+    // A connection, opened to another gateway (peer) or accepted from one (no peer)
+    private static class Connection {
+        private final SocketChannel channel;
+        private final InetSocketAddress peer;
+        private final Queue<ByteBuffer> out = new ArrayDeque<>();
+        private final Map<Long, Inflight> inflight = new ConcurrentHashMap<>();
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+        private SelectionKey key;
+
+        Connection(SocketChannel channel, InetSocketAddress peer) {
+            this.channel = channel;
+            this.peer = peer;
+        }
+
+        void enqueue(ByteBuffer frame) throws IOException {
+            out.add(frame);
+            if (channel.isConnected())
+                flush();
+        }
+
+        // Writes what the socket accepts, and asks to be called again for the rest
+        void flush() throws IOException {
+            ByteBuffer frame;
+            while ((frame = out.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining())
+                    break;
+                out.poll();
+                if (frame.get(4) == DELIVER) {
+                    Inflight message = inflight.get(frame.getLong(5));
+                    if (message != null)
+                        message.written = true;
+                }
+            }
+            key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package websocket;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where the users are connected, for the factories (gateways) to deliver the messages to each other directly.
+ *
+ * - "/gateways/g-N" (ephemeral sequential): a gateway, with the "host:port" of its link (see {@link GatewayLink});
+ * - "/routes/ID" (ephemeral, created by the gateway's session): the gateway ("g-N") the user is connected to.
+ * Both vanish with the session of a gateway that crashes. The lookups are cached, found or not, and the cache entries
+ * are dropped by the watch set when they are read, so a lookup only reaches ZooKeeper after a change. A lookup puts its
+ * entry in the cache before reading ZooKeeper and fills it afterwards only if it is still there: a change notified
+ * while the route was being read can then not leave the old route cached.
+ */
+public class GatewayRegistry implements Watcher {
+
+    private static final String GATEWAYS = "/gateways";
+    private static final String ROUTES = "/routes";
+
+    // cached "no route"
+    private static final String NONE = "";
+
+    private final ZooKeeper zoo;
+    private final String id;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final Map<String, InetSocketAddress> gateways = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a gateway.
+     * @param zoo The session of the gateway (its routes are ephemeral nodes of this session).
+     * @param link The address the other gateways reach this one at.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    public GatewayRegistry(ZooKeeper zoo, InetSocketAddress link) throws KeeperException, InterruptedException {
+        this.zoo = zoo;
+        createIfMissing(GATEWAYS);
+        createIfMissing(ROUTES);
+        String path = zoo.create(GATEWAYS + "/g-", (link.getHostString() + ":" + link.getPort()).getBytes(StandardCharsets.UTF_8),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        this.id = path.substring(GATEWAYS.length() + 1);
+    }
+
+    private void createIfMissing(String path) throws KeeperException, InterruptedException {
+        try {
+            zoo.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException ignored) { }
+    }
+
+    // The id of this gateway, i.e. "g-0000000003"
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Routes a user to this gateway (it has just logged in here).
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    public void addRoute(String user) throws KeeperException, InterruptedException {
+        byte[] data = id.getBytes(StandardCharsets.UTF_8);
+        try {
+            zoo.create(ROUTES + "/" + user, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        } catch (KeeperException.NodeExistsException e) {
+            // left by a session that is expiring (the user can only be online once)
+            zoo.delete(ROUTES + "/" + user, -1);
+            zoo.create(ROUTES + "/" + user, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        }
+    }
+
+    /**
+     * Removes the route of a user that left this gateway (unless it already points to another one).
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    public void removeRoute(String user) throws KeeperException, InterruptedException {
+        Stat stat = new Stat();
+        try {
+            byte[] data = zoo.getData(ROUTES + "/" + user, false, stat);
+            if (id.equals(new String(data, StandardCharsets.UTF_8)))
+                zoo.delete(ROUTES + "/" + user, stat.getVersion());
+        } catch (KeeperException.NoNodeException | KeeperException.BadVersionException ignored) { }
+    }
+
+    /**
+     * @return The gateway the user is connected to, or null if the user has no route (offline, or connected to a
+     * gateway without routes).
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    public String lookup(String user) throws KeeperException, InterruptedException {
+        Route route = routes.get(user);
+        String gateway = route == null ? null : route.gateway;
+        if (gateway == null) {
+            Route reading = new Route(null);
+            routes.put(user, reading);
+            String path = ROUTES + "/" + user;
+            try {
+                gateway = new String(zoo.getData(path, this, null), StandardCharsets.UTF_8);
+            } catch (KeeperException.NoNodeException e) {
+                // watch the creation; if the node was created meanwhile, read it again next time
+                gateway = zoo.exists(path, this) == null ? NONE : null;
+            }
+            if (gateway == null) {
+                routes.remove(user, reading);
+                return null;
+            }
+            // not cached if the watch fired meanwhile (it removed the entry, or another lookup replaced it)
+            routes.replace(user, reading, new Route(gateway));
+        }
+        return gateway.equals(NONE) ? null : gateway;
+    }
+
+    /**
+     * @return The address of the link of a gateway, or null if the gateway is gone.
+     * @throws KeeperException -
+     * @throws InterruptedException -
+     */
+    public InetSocketAddress address(String gateway) throws KeeperException, InterruptedException {
+        InetSocketAddress address = gateways.get(gateway);
+        if (address != null)
+            return address;
+        try {
+            String[] hostPort = new String(zoo.getData(GATEWAYS + "/" + gateway, this, null), StandardCharsets.UTF_8).split(":");
+            address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+        gateways.put(gateway, address);
+        return address;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        String path = event.getPath();
+        if (path == null)
+            return;
+        if (path.startsWith(ROUTES + "/"))
+            routes.remove(path.substring(ROUTES.length() + 1));
+        else if (path.startsWith(GATEWAYS + "/"))
+            gateways.remove(path.substring(GATEWAYS.length() + 1));
+    }
+
+    // A cached route; null while it is being read (entries are compared by identity)
+    private static class Route {
+        private final String gateway;
+
+        Route(String gateway) {
+            this.gateway = gateway;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package websocket;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk history of the conversations delivered by this gateway, queried by pages.
+ *
+ * Each conversation (a pair of users, in any order) has two append-only files:
+ * - "*.dat": the messages, as [length (4)][timestamp (8)][sender length (2)][sender][text];
+ * - "*.idx": fixed-size entries [key (8)][offset in the data file (8)], one per message.
+ * The key of a message is its timestamp, raised if needed to the key of the previous message, so the index is sorted
+ * and a page ("the last N messages before T") is found by a binary search: it costs a few small reads and two
+ * sequential ones whatever the length of the conversation.
+ *
+ * The data is written before the index. When the files are opened, a partial index entry and the data past the last
+ * indexed message (left by a crash between the two writes) are dropped; an append that fails is undone the same way,
+ * so the next message always starts right after the last indexed one.
+ */
+public class HistoryStore implements Closeable {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int MAX_OPEN_CONVERSATIONS = 256;
+
+    private final File directory;
+
+    // the most recently used conversations keep their files open
+    private final Map<String, Conversation> open = new LinkedHashMap<String, Conversation>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+            if (size() <= MAX_OPEN_CONVERSATIONS)
+                return false;
+            eldest.getValue().close();
+            return true;
+        }
+    };
+
+    public HistoryStore(File directory) {
+        this.directory = directory;
+    }
+
+    public static class Entry {
+        private final String sender;
+        private final long timestamp;
+        private final String text;
+
+        Entry(String sender, long timestamp, String text) {
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+
+        public String getSender() { return sender; }
+        public long getTimestamp() { return timestamp; }
+        public String getText() { return text; }
+    }
+
+    public static class Page {
+        private final List<Entry> entries;
+        private final boolean more;
+
+        Page(List<Entry> entries, boolean more) {
+            this.entries = entries;
+            this.more = more;
+        }
+
+        // in chronological order
+        public List<Entry> getEntries() { return entries; }
+
+        // true if there are older messages
+        public boolean hasMore() { return more; }
+    }
+
+    /**
+     * Adds a message at the end of the conversation between two users.
+     */
+    public void append(String userA, String userB, String sender, long timestamp, String text) {
+        while (true) {
+            Conversation conversation = conversation(userA, userB);
+            synchronized (conversation) {
+                if (conversation.closed)
+                    continue;
+                try {
+                    conversation.append(sender, timestamp, text);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not store the history of " + conversation.name, e);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param before Only the messages with a timestamp strictly lower than this one (Long.MAX_VALUE for the last ones).
+     * @param limit The maximum number of messages (at most MAX_PAGE_SIZE).
+     * @return The last messages of the conversation before the given time.
+     */
+    public Page before(String userA, String userB, long before, int limit) {
+        while (true) {
+            Conversation conversation = conversation(userA, userB);
+            synchronized (conversation) {
+                if (conversation.closed)
+                    continue;
+                try {
+                    return conversation.before(before, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not read the history of " + conversation.name, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (open) {
+            for (Conversation conversation : open.values()) conversation.close();
+            open.clear();
+        }
+    }
+
+    // Each user id is encoded on its own: "~" is escaped in the ids, so two different pairs never share a file name
+    private static String encode(String user) {
+        try {
+            return URLEncoder.encode(user, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Conversation conversation(String userA, String userB) {
+
+        String name = userA.compareTo(userB) <= 0 ? encode(userA) + "~" + encode(userB) : encode(userB) + "~" + encode(userA);
+        synchronized (open) {
+            Conversation conversation = open.get(name);
+            if (conversation != null)
+                return conversation;
+
+            try {
+                conversation = new Conversation(name);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the history of " + name, e);
+            }
+            open.put(name, conversation);
+            return conversation;
+        }
+    }
+
+    private class Conversation {
+
+        private final String name;
+        private final FileChannel data;
+        private final FileChannel index;
+        private long entries;
+        private long dataSize;
+        private long lastKey;
+        private boolean closed;
+
+        Conversation(String name) throws IOException {
+            this.name = name;
+
+            // spread the files over 256 folders
+            File folder = new File(directory, String.format("%02x", name.hashCode() & 0xff));
+            if (!folder.isDirectory() && !folder.mkdirs())
+                throw new IOException("Cannot create " + folder);
+
+            this.data = FileChannel.open(new File(folder, name + ".dat").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.index = FileChannel.open(new File(folder, name + ".idx").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            // a partial entry (crash while appending) is dropped, and so are the entries whose message is not complete
+            this.entries = index.size() / INDEX_ENTRY_BYTES;
+            while (entries > 0 && recordEnd(entries - 1) > data.size())
+                entries--;
+            index.truncate(entries * INDEX_ENTRY_BYTES);
+            this.lastKey = entries == 0 ? Long.MIN_VALUE : keyAt(entries - 1);
+
+            // then the messages that were written but never indexed
+            this.dataSize = entries == 0 ? 0 : recordEnd(entries - 1);
+            data.truncate(dataSize);
+        }
+
+        void append(String sender, long timestamp, String text) throws IOException {
+
+            byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(4 + 8 + 2 + senderBytes.length + textBytes.length);
+            record.putInt(record.capacity() - 4).putLong(timestamp)
+                    .putShort((short) senderBytes.length).put(senderBytes).put(textBytes);
+            record.flip();
+
+            long offset = dataSize;
+            long key = Math.max(timestamp, lastKey);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+            entry.putLong(key).putLong(offset);
+            entry.flip();
+
+            try {
+                write(data, record, offset);
+                write(index, entry, entries * INDEX_ENTRY_BYTES);
+            } catch (IOException e) {
+                // undo what was written (anything left past dataSize is ignored by the reads and overwritten anyway)
+                try {
+                    index.truncate(entries * INDEX_ENTRY_BYTES);
+                    data.truncate(offset);
+                } catch (IOException undo) {
+                    e.addSuppressed(undo);
+                }
+                throw e;
+            }
+
+            entries++;
+            lastKey = key;
+            dataSize = offset + record.capacity();
+        }
+
+        Page before(long before, int limit) throws IOException {
+
+            // first entry with a key >= before
+            long low = 0;
+            long high = entries;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (keyAt(middle) < before) low = middle + 1;
+                else high = middle;
+            }
+            long end = low;
+            long start = Math.max(0, end - limit);
+            if (start == end)
+                return new Page(Collections.emptyList(), false);
+
+            // the entries of the page, then the messages (contiguous in the data file)
+            ByteBuffer entryBuffer = read(index, start * INDEX_ENTRY_BYTES, (int) ((end - start) * INDEX_ENTRY_BYTES));
+            long firstOffset = entryBuffer.getLong(8);
+            long lastOffset = end < entries ? offsetAt(end) : dataSize;
+            ByteBuffer records = read(data, firstOffset, (int) (lastOffset - firstOffset));
+
+            List<Entry> page = new ArrayList<>((int) (end - start));
+            for (long i = start; i < end; i++) {
+                int length = records.getInt();
+                long timestamp = records.getLong();
+                byte[] sender = new byte[records.getShort()];
+                records.get(sender);
+                byte[] text = new byte[length - 8 - 2 - sender.length];
+                records.get(text);
+                page.add(new Entry(new String(sender, StandardCharsets.UTF_8), timestamp, new String(text, StandardCharsets.UTF_8)));
+            }
+            return new Page(page, start > 0);
+        }
+
+        private long keyAt(long entry) throws IOException {
+            return read(index, entry * INDEX_ENTRY_BYTES, 8).getLong();
+        }
+
+        private long offsetAt(long entry) throws IOException {
+            return read(index, entry * INDEX_ENTRY_BYTES + 8, 8).getLong();
+        }
+
+        // The end of the message of an entry in the data file (past the end of the file if the message is not complete)
+        private long recordEnd(long entry) throws IOException {
+            long offset = offsetAt(entry);
+            if (offset + 4 > data.size())
+                return Long.MAX_VALUE;
+            return offset + 4 + read(data, offset, 4).getInt();
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                try {
+                    data.close();
+                    index.close();
+                } catch (IOException e) {
+                    System.out.println("Could not close the history of " + name + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,170 @@
+package websocket;
+
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.errors.TopicExistsException;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the messages of all the users from a single partitioned topic, keyed by receiver, with a few consumer threads
+ * shared by all the users of the factory.
+ *
+ * The consumers of a factory form their own consumer group (so every factory reads every message) and split the
+ * partitions among them. A message is delivered to the session of its receiver found in the registry, or skipped if the
+ * receiver is not logged in on this factory (the factory where it is logged in delivers it). All the messages of a
+ * receiver are in one partition, read by one thread, so they are delivered in order.
+ *
+ * The senders check that the receiver is online before producing (see {@link KafkaSocketConnectedWorker}), but unlike
+ * a ZooKeeper inbox, which the master backs up when its user goes offline, a message read once its receiver has left
+ * every factory is lost: the window is the time between the send and the poll.
+ */
+public class KafkaConsumerEngine implements Closeable {
+
+    // i.e. -Dkafka.servers=broker1:9092,broker2:9092
+    public static final String SERVERS = System.getProperty("kafka.servers", "localhost:9092");
+    public static final String TOPIC = System.getProperty("kafka.topic", "messages");
+
+    // the topic is created with these settings if it does not exist
+    private static final int PARTITIONS = Integer.getInteger("kafka.partitions", 16);
+    private static final short REPLICATION = (short) (int) Integer.getInteger("kafka.replication", 1);
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private final SessionRegistry sessions;
+    private final String group;
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<KafkaConsumer<String, String>> consumers = new ArrayList<>();
+    private volatile boolean closed;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param sessions The routing table: the sessions of the users logged in on this factory.
+     * @param group The consumer group of this factory, the same after a restart to resume where it stopped.
+     */
+    public KafkaConsumerEngine(SessionRegistry sessions, String group) {
+        this.sessions = sessions;
+        this.group = group;
+    }
+
+    // i.e. "gateway-host-48080"
+    public static String defaultGroup(int port) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return System.getProperty("kafka.group", "gateway-" + host + "-" + port);
+    }
+
+    /**
+     * Creates the topic if needed and starts the consumer threads.
+     * @param threadCount The number of consumers (more than the partitions of the topic would leave some idle).
+     */
+    public void start(int threadCount) {
+        createTopic();
+        for (int i = 0; i < threadCount; i++) {
+            KafkaConsumer<String, String> consumer = new KafkaConsumer<>(consumerProperties(i));
+            consumers.add(consumer);
+            Thread thread = new Thread(() -> consume(consumer), "kafka-consumer-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    private Properties consumerProperties(int index) {
+        Properties properties = new Properties();
+        properties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, SERVERS);
+        properties.put(ConsumerConfig.GROUP_ID_CONFIG, group);
+        properties.put(ConsumerConfig.CLIENT_ID_CONFIG, group + "-" + index);
+        properties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        // a new factory starts with the messages sent from now on
+        properties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest");
+        return properties;
+    }
+
+    private void createTopic() {
+        Properties properties = new Properties();
+        properties.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, SERVERS);
+        properties.put(AdminClientConfig.REQUEST_TIMEOUT_MS_CONFIG, 10000);
+        try (AdminClient admin = AdminClient.create(properties)) {
+            admin.createTopics(Collections.singletonList(new NewTopic(TOPIC, PARTITIONS, REPLICATION))).all().get();
+            System.out.println("<INFO> Created the topic " + TOPIC + " with " + PARTITIONS + " partitions");
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof TopicExistsException))
+                System.out.println("<WARNING> Could not create the topic " + TOPIC + ": " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume(KafkaConsumer<String, String> consumer) {
+        try {
+            consumer.subscribe(Collections.singletonList(TOPIC));
+            while (!closed) {
+                ConsumerRecords<String, String> records = consumer.poll(POLL_TIMEOUT_MILLIS);
+                for (ConsumerRecord<String, String> record : records)
+                    dispatch(record);
+            }
+        } catch (WakeupException e) {
+            if (!closed) throw e;
+        } finally {
+            consumer.close();
+        }
+    }
+
+    // The key is the receiver, the value "SENDER:MESSAGE"
+    private void dispatch(ConsumerRecord<String, String> record) {
+        SocketConnectedWorker worker = record.key() == null ? null : sessions.byUser(record.key());
+        int separator = record.value() == null ? -1 : record.value().indexOf(':');
+        if (worker == null || separator < 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            worker.read(record.value().substring(0, separator), record.value().substring(separator + 1));
+            delivered.incrementAndGet();
+        } catch (RuntimeException e) {
+            // i.e. the connection was closed meanwhile
+            dropped.incrementAndGet();
+        }
+    }
+
+    public String report() {
+        return "Kafka messages delivered: " + delivered.get() + ", skipped (receiver not here): " + dropped.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (KafkaConsumer<String, String> consumer : consumers)
+            consumer.wakeup();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package websocket;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+import java.io.Closeable;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The producer shared by all the users of a factory: a single buffer pool, sender thread and metadata cache, and the
+ * messages of all the users batched together.
+ *
+ * The receiver is the key of the record, so the messages sent to a user go to the same partition and keep their order
+ * (see {@link KafkaConsumerEngine}). A send is complete once the broker has acknowledged the record.
+ */
+public class KafkaMessageProducer implements Closeable {
+
+    // Kafka's defaults: under load the records queued while a request is in flight are batched anyway, and on a single
+    // broker a linger (i.e. -Dkafka.linger.ms=5) only delayed each confirmation by its length, without more throughput.
+    // Compression (i.e. -Dkafka.compression=lz4) is worth trying when the broker is reached over a slow network
+    private static final int LINGER_MILLIS = Integer.getInteger("kafka.linger.ms", 0);
+    private static final int BATCH_BYTES = Integer.getInteger("kafka.batch.bytes", 16 * 1024);
+    private static final String COMPRESSION = System.getProperty("kafka.compression", "none");
+    private static final String ACKS = System.getProperty("kafka.acks", "1");
+    // how long a send may wait for the metadata or for room in the buffer (it runs on a websocket thread)
+    private static final int MAX_BLOCK_MILLIS = Integer.getInteger("kafka.max.block.ms", 1000);
+
+    private final KafkaProducer<String, String> producer;
+
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public KafkaMessageProducer() {
+        this(properties());
+    }
+
+    KafkaMessageProducer(Properties properties) {
+        this.producer = new KafkaProducer<>(properties);
+    }
+
+    static Properties properties() {
+        Properties properties = new Properties();
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, KafkaConsumerEngine.SERVERS);
+        properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        properties.put(ProducerConfig.LINGER_MS_CONFIG, LINGER_MILLIS);
+        properties.put(ProducerConfig.BATCH_SIZE_CONFIG, BATCH_BYTES);
+        properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, COMPRESSION);
+        properties.put(ProducerConfig.ACKS_CONFIG, ACKS);
+        properties.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, MAX_BLOCK_MILLIS);
+        return properties;
+    }
+
+    /**
+     * Sends a message (the value of the record is "SENDER:MESSAGE").
+     * @return A future completed when the broker acknowledges the record, or completed exceptionally if it fails.
+     */
+    public CompletableFuture<RecordMetadata> send(String sender, String receiver, String message) {
+        CompletableFuture<RecordMetadata> future = new CompletableFuture<>();
+        try {
+            producer.send(new ProducerRecord<>(KafkaConsumerEngine.TOPIC, receiver, sender + ":" + message),
+                    (metadata, exception) -> {
+                        if (exception != null) {
+                            failed.incrementAndGet();
+                            future.completeExceptionally(exception);
+                        } else {
+                            acknowledged.incrementAndGet();
+                            future.complete(metadata);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            // i.e. no metadata or no room in the buffer within MAX_BLOCK_MILLIS
+            failed.incrementAndGet();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public String report() {
+        return "Kafka messages acknowledged: " + acknowledged.get() + ", failed: " + failed.get();
+    }
+
+    // Sends what is still buffered, then releases the producer
+    @Override
+    public void close() {
+        producer.close();
+    }
+}
@@ -1,72 +1,85 @@
 package websocket;
 
-import com.company.ZooHelper;
-import org.apache.kafka.clients.consumer.*;
-import org.apache.kafka.clients.producer.*;
-import org.apache.kafka.common.errors.WakeupException;
-import org.apache.zookeeper.*;
+import org.apache.zookeeper.KeeperException;
 import org.java_websocket.WebSocket;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
-public class KafkaSocketConnectedWorker extends SocketConnectedWorker implements Runnable{
-
-    private String id, topicName, groupId;
-    private String enrollUserPath, quitUserPath, onlineUserPath;
-    private ZooKeeper zoo;
-    private ZooHelper zooHelper;
+/**
+ * A worker that sends its messages through Kafka: they go to the topic shared by all the users, keyed by receiver, and
+ * are delivered by the {@link KafkaConsumerEngine} of the factory where the receiver is logged in.
+ * As through ZooKeeper, a message can only be sent to a receiver that has an inbox ("/queue/id", from its login until
+ * it goes offline): no factory would read it otherwise, so the send fails instead of being acknowledged.
+ */
+public class KafkaSocketConnectedWorker extends SocketConnectedWorker {
 
+    private String id;
 
     private boolean logged;
-    private KafkaConsumer<String,String> kafkaConsumer;
-    private Properties configPropertiesProducer, configPropertiesConsumer;
-    private org.apache.kafka.clients.producer.Producer producer;
+    // shared by all the users of the factory
+    private KafkaMessageProducer producer;
 
 
 
-    public KafkaSocketConnectedWorker(String id, WebSocket client) throws IOException, InterruptedException {
+    public KafkaSocketConnectedWorker(String id, WebSocket client, KafkaMessageProducer producer) throws IOException, InterruptedException {
         super(id, client);
         this.id = id;
 
         this.logged = false;
-        this.topicName = id;
-        this.groupId = id;
-
-        //Configure the Producer
-        this.configPropertiesProducer = new Properties();
-        this.configPropertiesProducer.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG,"localhost:9092");
-        this.configPropertiesProducer.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG,"org.apache.kafka.common.serialization.ByteArraySerializer");
-        this.configPropertiesProducer.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,"org.apache.kafka.common.serialization.StringSerializer");
-
-        this.producer = new KafkaProducer(configPropertiesProducer);
-
-        this.configPropertiesConsumer = new Properties();
-        this.configPropertiesConsumer.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
-        this.configPropertiesConsumer.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArrayDeserializer");
-        this.configPropertiesConsumer.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer");
-        this.configPropertiesConsumer.put(ConsumerConfig.GROUP_ID_CONFIG, this.id);
-        this.configPropertiesConsumer.put(ConsumerConfig.CLIENT_ID_CONFIG, "simple");
-
+        this.producer = producer;
     }
 
     @Override
     public void write(String idReceiver, String message) {
-        ProducerRecord<String, String> rec = new ProducerRecord<String, String>(idReceiver,this.id+":"+message);
-        producer.send(rec);
+        if (!hasInbox(idReceiver)) {
+            System.out.println("<ERROR> The receiver is not online. You cannot write to offline people!");
+            return;
+        }
+        producer.send(this.id, idReceiver, message);
     }
 
+    // The future is completed once the broker has acknowledged the message (exceptionally if the receiver is offline)
+    @Override
+    public CompletableFuture<String> writeAsync(String idReceiver, String message) {
+        if (!hasInbox(idReceiver)) {
+            CompletableFuture<String> offline = new CompletableFuture<>();
+            offline.completeExceptionally(new KeeperException.NoNodeException("/queue/" + idReceiver));
+            return offline;
+        }
+        return producer.send(this.id, idReceiver, message).thenApply(Object::toString);
+    }
+
+    // True once the broker has acknowledged the message
     @Override
     public boolean writeWithAnswer(String idReceiver, String message) {
+        if (!hasInbox(idReceiver))
+            return false;
         try {
-            this.write(idReceiver, message);
-        } catch (Exception e) {
+            producer.send(this.id, idReceiver, message).get();
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
         }
         return true;
     }
 
 
+    // The receiver is online: the master created its inbox when it logged in and deletes it once it is gone
+    private boolean hasInbox(String idReceiver) {
+        try {
+            return getZoo().exists("/queue/" + idReceiver, false) != null;
+        } catch (KeeperException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     @Override
     public boolean login() {
         if(!logged)
@@ -75,37 +88,4 @@ public class KafkaSocketConnectedWorker extends SocketConnectedWorker implements
             System.out.println("Already logged");
         return logged;
     }
-
-
-    @Override
-    public boolean disconnect(){
-        producer.close();
-        return super.disconnect();
-    }
-
-    @Override
-    public void run() {
-
-        //Figure out where to start processing messages from
-        kafkaConsumer = new KafkaConsumer<String, String>(configPropertiesConsumer);
-        kafkaConsumer.subscribe(Arrays.asList(topicName));
-        //Start processing messages
-        while(!logged){
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) { e.printStackTrace(); }
-        }
-        try {
-            while (true) {
-                ConsumerRecords<String, String> records = kafkaConsumer.poll(100);
-                for (ConsumerRecord<String, String> record : records)
-                    super.read(record.topic(), record.value());
-            }
-        }catch(WakeupException ex){
-            System.out.println("Exception caught " + ex.getMessage());
-        }finally{
-            kafkaConsumer.close();
-            System.out.println("After closing KafkaConsumer");
-        }
-    }
-}
\ No newline at end of file
+}
@@ -5,19 +5,42 @@ import java.io.IOException;
 
 public class KafkaWorkerFactory extends WorkerFactory{
 
+    // i.e. -Dkafka.consumers=4 (at most the number of partitions of the topic)
+    private static final int CONSUMERS = Integer.getInteger("kafka.consumers", 2);
+
+    private final KafkaConsumerEngine engine;
+    private final KafkaMessageProducer producer;
+
     public KafkaWorkerFactory() throws IOException, InterruptedException {
-        super();
+        // the messages already reach every factory through the topic: no routes
+        super(0, false);
+        // the consumers deliver the messages to the users logged in on this factory, found in the session registry
+        this.engine = new KafkaConsumerEngine(sessions, KafkaConsumerEngine.defaultGroup(getAddress().getPort()));
+        this.engine.start(CONSUMERS);
+        this.producer = new KafkaMessageProducer();
     }
 
     @Override
     protected SocketConnectedWorker create_worker(String id, WebSocket websocket){
         SocketConnectedWorker new_worker = null;
         try {
-            new_worker = new KafkaSocketConnectedWorker(id, websocket);
-            ((KafkaSocketConnectedWorker)new_worker).run();
+            new_worker = new KafkaSocketConnectedWorker(id, websocket, producer);
         } catch (Exception e) {
             e.printStackTrace();
         }
         return new_worker;
     }
-}
\ No newline at end of file
+
+    @Override
+    protected void shutdown() {
+        producer.close();
+        engine.close();
+        System.out.println(producer.report());
+        System.out.println(engine.report());
+        super.shutdown();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        serve(new KafkaWorkerFactory());
+    }
+}
@@ -1,26 +1,46 @@
 package websocket;
 
 import com.company.ZooHelper;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
-import org.json.JSONObject;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class OnlineUserKeepAlive extends WebSocketServer {
+/**
+ * Pushes the online users to the connected browsers: the full list when a browser connects, then only the users that
+ * joined or left, as soon as the child watch on "/online" fires.
+ */
+public class OnlineUserKeepAlive extends WebSocketServer implements Watcher, AsyncCallback.ChildrenCallback {
 
     private final static int port = 48081;
-    private List<WebSocket> keepalive_list;
+    private Set<WebSocket> keepalive_list;
     private ZooKeeper zoo;
 
+    // the users online as last listed, guarded by the lock (with the list of sockets, so that a new socket gets either
+    // the snapshot before a delta and the delta, or the snapshot after it)
+    private final Set<String> onlineUsers = new HashSet<>();
+    private final Object lock = new Object();
+
 
     public OnlineUserKeepAlive(){
         super(new InetSocketAddress(port));
-        this.keepalive_list = new ArrayList<WebSocket>();
+        this.keepalive_list = ConcurrentHashMap.newKeySet();
         try {
             this.zoo = ZooHelper.getConnection();
         } catch (Exception e) { e.printStackTrace(); }
@@ -35,51 +55,106 @@ public class OnlineUserKeepAlive extends WebSocketServer {
 
 
     public void execution(){
-
-        List<String> onlineUsers;
-        JSONObject onlineUsers_message = new JSONObject();
         System.out.println("Started the online user keep alive");
-        try {
-            Thread.sleep(5000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
         super.start();
+        listOnlineUsers();
+    }
 
-        while(true){
+    /* PRESENCE *******************************************************************************************************/
 
-            try {
-                onlineUsers = zoo.getChildren("/online", false);
-                //onlineUsers = Arrays.asList("sup1", "sup2", "sup3");
-                onlineUsers_message.put("users", onlineUsers);
+    // Lists "/online" again and sets the watch; the result is handled by processResult, in order, on the event thread
+    private void listOnlineUsers() {
+        zoo.getChildren("/online", this, this, null);
+    }
 
-                System.out.println("Sending keep alive. Number of users:" + onlineUsers.size());
-                //Sending list of users
-                for(WebSocket socket:keepalive_list)
-                    socket.send(onlineUsers_message.toString());
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.NodeChildrenChanged || event.getType() == Event.EventType.NodeCreated
+                || event.getType() == Event.EventType.NodeDeleted)
+            listOnlineUsers();
+    }
 
-                Thread.sleep(10000);
+    @Override
+    public void processResult(int rc, String path, Object ctx, List<String> children) {
+
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        if (code == KeeperException.Code.NONODE) {
+            // no master yet (or wiping the tree): everybody left, wait for the node to be created
+            update(new ArrayList<>());
+            zoo.exists("/online", this, (AsyncCallback.StatCallback) (rc2, path2, ctx2, stat) -> {
+                if (KeeperException.Code.get(rc2) == KeeperException.Code.OK) listOnlineUsers();
+            }, null);
+            return;
+        }
+        if (code == KeeperException.Code.CONNECTIONLOSS) {
+            // list again (the call waits for the reconnection)
+            System.out.println("<WARNING> Could not list the online users: " + code);
+            listOnlineUsers();
+            return;
+        }
+        if (code != KeeperException.Code.OK) {
+            System.out.println("<ERROR> Could not list the online users: " + code);
+            return;
+        }
+        update(children);
+    }
 
-            } catch (Exception e) { e.printStackTrace(); }
+    // Broadcasts the users that joined or left since the last listing (one frame, encoded once for all the sockets)
+    private void update(List<String> children) {
+        synchronized (lock) {
+            List<String> joined = new ArrayList<>();
+            for (String user : children)
+                if (!onlineUsers.contains(user)) joined.add(user);
+
+            Set<String> current = new HashSet<>(children);
+            List<String> left = new ArrayList<>();
+            for (String user : onlineUsers)
+                if (!current.contains(user)) left.add(user);
+
+            if (joined.isEmpty() && left.isEmpty())
+                return;
+            onlineUsers.addAll(joined);
+            onlineUsers.removeAll(left);
+
+            ByteBuffer frame = encode(ChatFrameCodec.presence(joined, left));
+            for (WebSocket socket : keepalive_list)
+                send(socket, frame);
         }
+    }
+
+    private static ByteBuffer encode(String frame) {
+        return ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
 
+    private static void send(WebSocket socket, ByteBuffer frame) {
+        if (!socket.isOpen())
+            return;
+        FramedataImpl1 text = new FramedataImpl1(Framedata.Opcode.TEXT);
+        text.setFin(true);
+        try {
+            text.setPayload(frame.duplicate());
+            socket.sendFrame(text);
+        } catch (InvalidDataException | RuntimeException e) {
+            System.out.println("<ERROR> Could not send the online users to " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        }
     }
 
+    /* SOCKETS ********************************************************************************************************/
 
     @Override
     public void onOpen(WebSocket webSocket, ClientHandshake clientHandshake) {
-        if(!this.keepalive_list.contains(webSocket))
-            this.keepalive_list.add(webSocket);
-        else
-            System.out.println("<ERROR> Already saved connection" + webSocket.getRemoteSocketAddress());
-    System.out.println("Opening connect" + webSocket.getRemoteSocketAddress());
-
+        synchronized (lock) {
+            if(this.keepalive_list.add(webSocket))
+                send(webSocket, encode(ChatFrameCodec.presence(onlineUsers)));
+            else
+                System.out.println("<ERROR> Already saved connection" + webSocket.getRemoteSocketAddress());
+        }
+        System.out.println("Opening connect" + webSocket.getRemoteSocketAddress());
     }
 
     @Override
     public void onClose(WebSocket webSocket, int i, String s, boolean b) {
-        if(this.keepalive_list.contains(webSocket))
-            this.keepalive_list.remove(webSocket);
+        this.keepalive_list.remove(webSocket);
         System.out.println("Closing connect" + webSocket.getRemoteSocketAddress());
 
     }
@@ -91,8 +166,8 @@ public class OnlineUserKeepAlive extends WebSocketServer {
 
     @Override
     public void onError(WebSocket webSocket, Exception e) {
-        if(this.keepalive_list.contains(webSocket))
+        if (webSocket != null)
             this.keepalive_list.remove(webSocket);
-        System.out.println("<ERROR> Error from socket " + webSocket + " with error" + e.getMessage());
+        System.out.println("<ERROR> Error from socket " + webSocket + " with error" + (e == null ? null : e.getMessage()));
     }
 }
@@ -0,0 +1,204 @@
+package websocket;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the blocking work of the factory (ZooKeeper, disk) out of the callbacks of the websocket server.
+ *
+ * The tasks of a session (a connection) run one at a time and in submission order; the tasks of different sessions
+ * run in parallel, so a slow login only delays its own session. The threads are virtual on a Java 21+ runtime (blocking
+ * is cheap) or else come from a fixed pool. The work waiting or running is bounded: beyond the limit, tasks are
+ * rejected. The engine keeps track of the time the tasks of each type wait before running, and of the rejections.
+ */
+public class SessionExecutor {
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    // i.e. -Dgateway.virtual=false to use the pool even on Java 21+
+    private static final boolean VIRTUAL = Boolean.parseBoolean(System.getProperty("gateway.virtual", "true"));
+
+    private final ExecutorService threads;
+    private final boolean virtual;
+    private final int maxPending;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Map<Object, Serial> serials = new ConcurrentHashMap<>();
+    private final Map<String, Wait> waits = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param poolSize The number of threads when virtual threads are not available.
+     * @param maxPending The maximum number of tasks waiting or running.
+     */
+    public SessionExecutor(int poolSize, int maxPending) {
+        this.maxPending = maxPending;
+        ExecutorService virtualThreads = VIRTUAL ? newVirtualThreadExecutor() : null;
+        this.virtual = virtualThreads != null;
+        if (virtualThreads != null) {
+            this.threads = virtualThreads;
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            this.threads = Executors.newFixedThreadPool(poolSize, r -> {
+                Thread thread = new Thread(r, "gateway-worker-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor(), looked up at runtime since the sources target Java 8
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            String version = System.getProperty("java.specification.version");
+            if (version.startsWith("1.") || Integer.parseInt(version) < 21)
+                return null;
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param session The session the task belongs to (it runs after the tasks of the session submitted before).
+     * @param type The type of the task, i.e. "login", used for the statistics.
+     * @param task The task.
+     * @return False if the task is rejected (too much work pending).
+     */
+    public boolean submit(Object session, String type, Task task) {
+        return submit(session, type, task, false, false);
+    }
+
+    /**
+     * Submits a task that cannot be retried later (i.e. the delivery of a message already removed from its queue): it
+     * is never rejected.
+     */
+    public void submitForced(Object session, String type, Task task) {
+        submit(session, type, task, true, false);
+    }
+
+    /**
+     * Submits the last task of a session (i.e. the disconnection): it is never rejected, and the session is forgotten
+     * once it has run.
+     */
+    public void submitLast(Object session, String type, Task task) {
+        submit(session, type, task, true, true);
+    }
+
+    private boolean submit(Object session, String type, Task task, boolean forced, boolean last) {
+
+        if (!forced && pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        if (forced)
+            pending.incrementAndGet();
+
+        Wait wait = waits.computeIfAbsent(type, k -> new Wait());
+        long submitTime = System.nanoTime();
+        Runnable runnable = () -> {
+            wait.record(System.nanoTime() - submitTime);
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.out.println("<ERROR> " + type + " failed: " + e.getMessage());
+            } finally {
+                pending.decrementAndGet();
+            }
+        };
+
+        Serial serial = serials.computeIfAbsent(session, k -> new Serial(k));
+        if (last)
+            serial.last = true;
+        serial.tasks.add(runnable);
+        if (serial.size.getAndIncrement() == 0)
+            threads.execute(serial);
+        return true;
+    }
+
+    /**
+     * @return A one-line summary of the work pending, of the rejections and of the wait of each type of task, or null
+     * if nothing happened since the previous report.
+     */
+    public String report() {
+
+        long rejections = rejected.sumThenReset();
+        StringBuilder report = new StringBuilder("<STATS> ").append(virtual ? "virtual" : "pooled")
+                .append(" threads, pending: ").append(pending.get()).append(", rejected: ").append(rejections);
+        boolean activity = rejections > 0;
+
+        for (Map.Entry<String, Wait> entry : new TreeMap<>(waits).entrySet()) {
+            Wait wait = entry.getValue();
+            long count = wait.count.sumThenReset();
+            long total = wait.totalNanos.sumThenReset();
+            long max = wait.maxNanos.getAndSet(0);
+            if (count == 0)
+                continue;
+
+            activity = true;
+            report.append(" | ").append(entry.getKey()).append(": ").append(count)
+                    .append(" tasks, wait avg ").append(total / count / 1000).append("us")
+                    .append(", max ").append(max / 1000).append("us");
+        }
+
+        return activity || pending.get() > 0 ? report.toString() : null;
+    }
+
+    public void shutdown() {
+        threads.shutdown();
+        try {
+            threads.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The tasks of a session, run by one thread at a time
+    private class Serial implements Runnable {
+        private final Object session;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private volatile boolean last;
+
+        Serial(Object session) {
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            do {
+                tasks.poll().run();
+            } while (size.decrementAndGet() > 0);
+
+            if (last)
+                serials.remove(session, this);
+        }
+    }
+
+    private static class Wait {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}
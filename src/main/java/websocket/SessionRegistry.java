@@ -0,0 +1,107 @@
+package websocket;
+
+import org.java_websocket.WebSocket;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The users connected to a factory, indexed by connection and by username.
+ *
+ * The callbacks of the websocket server run on several threads, so a user is first reserved (which makes a second
+ * login with the same username fail at once) and its worker is attached once it is logged in. A connection closed in
+ * between makes the attachment fail: the caller then disconnects the worker it has just created.
+ */
+public class SessionRegistry {
+
+    public static class Session {
+        private final String user;
+        private final WebSocket connection;
+        private SocketConnectedWorker worker;
+        private boolean closed;
+
+        Session(String user, WebSocket connection) {
+            this.user = user;
+            this.connection = connection;
+        }
+
+        public String getUser() { return user; }
+        public WebSocket getConnection() { return connection; }
+
+        // null until the user is logged in
+        public synchronized SocketConnectedWorker getWorker() { return worker; }
+    }
+
+    private final ConcurrentMap<WebSocket, Session> byConnection = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Session> byUser = new ConcurrentHashMap<>();
+
+    /**
+     * @return The new session, or null if the username is already used or the connection already has a user.
+     */
+    public Session reserve(String user, WebSocket connection) {
+        Session session = new Session(user, connection);
+        if (byUser.putIfAbsent(user, session) != null)
+            return null;
+        if (byConnection.putIfAbsent(connection, session) != null) {
+            byUser.remove(user, session);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Attaches the worker of a logged in user to its session.
+     * @return False if the session was removed meanwhile (the connection was closed).
+     */
+    public boolean attach(Session session, SocketConnectedWorker worker) {
+        synchronized (session) {
+            if (session.closed)
+                return false;
+            session.worker = worker;
+            return true;
+        }
+    }
+
+    /**
+     * Removes the session of a connection.
+     * @return The session removed (with its worker, if it was attached), or null if the connection had none.
+     */
+    public Session remove(WebSocket connection) {
+        Session session = byConnection.remove(connection);
+        if (session == null)
+            return null;
+
+        byUser.remove(session.user, session);
+        synchronized (session) {
+            session.closed = true;
+        }
+        return session;
+    }
+
+    // The worker of the user logged in on a connection, or null
+    public SocketConnectedWorker byConnection(WebSocket connection) {
+        Session session = byConnection.get(connection);
+        return session == null ? null : session.getWorker();
+    }
+
+    // The worker of a user logged in on this factory, or null
+    public SocketConnectedWorker byUser(String user) {
+        Session session = byUser.get(user);
+        return session == null ? null : session.getWorker();
+    }
+
+    // The session of a user on this factory (logged in or still logging in), or null
+    public Session byUserSession(String user) {
+        return byUser.get(user);
+    }
+
+    public Collection<Session> sessions() {
+        return Collections.unmodifiableCollection(byConnection.values());
+    }
+
+    public int size() {
+        return byConnection.size();
+    }
+}
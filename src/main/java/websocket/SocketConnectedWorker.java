@@ -5,13 +5,25 @@ import com.company.ZooHelper;
 import org.apache.zookeeper.KeeperException;
 
 import org.java_websocket.WebSocket;
-import org.json.JSONObject;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SocketConnectedWorker extends Worker {
 
     private String id;
     private WebSocket client;
+    private ZooSessionPool pool;
+    private HistoryStore history;
+    private volatile ChatProtocol protocol = ChatProtocol.JSON;
+    private SessionExecutor executor;
+    // by sender, the messages sent to this user through the queue (or the topic) from this factory and not read yet
+    private final Map<String, AtomicInteger> queuedFrom = new ConcurrentHashMap<>();
+    // the messages can be sent directly once the worker is attached, and while the inbox was found empty since: the
+    // messages in it (i.e. restored at login, or sent through the queue by another factory) are not counted above
+    private volatile boolean attached;
+    private volatile boolean drained;
 
     public SocketConnectedWorker(String id, WebSocket client) throws IOException, InterruptedException {
         super(ZooHelper.getConnection(), id);
@@ -19,14 +31,107 @@ public class SocketConnectedWorker extends Worker {
         this.client = client;
     }
 
+    // The worker runs on a session of the pool instead of opening its own
+    public SocketConnectedWorker(String id, WebSocket client, ZooSessionPool pool) throws IOException, InterruptedException {
+        super(pool.acquire(id), id);
+        this.id = id;
+        this.client = client;
+        this.pool = pool;
+    }
+
+    // The delivered messages are recorded in the store (the timestamp is the delivery time, sent with the message)
+    public void setHistory(HistoryStore history) {
+        this.history = history;
+    }
+
+    // The frames of the messages delivered follow the protocol the client registered with
+    public void setProtocol(ChatProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    // The messages taken from the queue (or the topic) are delivered by the executor of the connection, after the
+    // messages handed over directly before them
+    public void setExecutor(SessionExecutor executor) {
+        this.executor = executor;
+    }
+
+    // A message taken from the queue (or the topic): it is gone from there, so its delivery cannot be rejected
+    // (a closed connection has run its last task: nothing is left to overtake)
     @Override
     public void read(String sender, String message) {
-        JSONObject obj = new JSONObject();
-        obj.put("type", "chat");
-        obj.put("sender", sender);
-        obj.put("dest", id);
-        obj.put("message", message);
-        this.client.send(obj.toString());
+        if (executor == null || !client.isOpen())
+            readQueued(sender, message);
+        else
+            executor.submitForced(client, "queue", () -> readQueued(sender, message));
+    }
+
+    private void readQueued(String sender, String message) {
+        readDirect(sender, message);
+        // only once it is delivered, so that a message sent directly after it cannot overtake it
+        AtomicInteger queued = queuedFrom.get(sender);
+        if (queued != null)
+            queued.getAndUpdate(count -> count > 0 ? count - 1 : 0);
+    }
+
+    // Called once the worker can be found in the registry: the messages of this factory are counted from now on
+    void attached() {
+        attached = true;
+        checkDrained();
+    }
+
+    @Override
+    protected void inboxFilled() {
+        drained = false;
+    }
+
+    @Override
+    protected void inboxDrained() {
+        if (attached && !drained)
+            checkDrained();
+    }
+
+    private void checkDrained() {
+        try {
+            if (isInboxEmpty())
+                drained = true;
+        } catch (KeeperException | InterruptedException e) {
+            // the next drain checks again
+        }
+    }
+
+    // Counts a message from a sender of this factory sent through the queue, until it is read
+    void expectQueued(String sender) {
+        queuedFrom.computeIfAbsent(sender, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    // The message counted could not be sent, it will not be read
+    void cancelQueued(String sender) {
+        AtomicInteger queued = queuedFrom.get(sender);
+        if (queued != null)
+            queued.getAndUpdate(count -> count > 0 ? count - 1 : 0);
+    }
+
+    // True while a message of the sender sent through the queue is not read (or the inbox is not drained): the next ones
+    // must follow it there
+    boolean hasQueuedFrom(String sender) {
+        if (!drained)
+            return true;
+        AtomicInteger queued = queuedFrom.get(sender);
+        return queued != null && queued.get() > 0;
+    }
+
+    // A message delivered within the process (from a user of this factory or from another factory), not from the queue
+    public void readDirect(String sender, String message) {
+        long timestamp = System.currentTimeMillis();
+        if (history != null) {
+            try {
+                history.append(sender, id, sender, timestamp, message);
+            } catch (Exception e) {
+                System.out.println("Could not record the message in the history: " + e.getMessage());
+            }
+        }
+
+        protocol.delivery(this.client, sender, id, message, timestamp);
     }
 
     @Override
@@ -71,4 +176,15 @@ public class SocketConnectedWorker extends Worker {
         }
         return result;
     }
+
+    //Overrided so that a pooled session is not closed: the user just goes offline and the session goes back to the pool
+    @Override
+    public boolean disconnect() {
+        if (pool == null)
+            return super.disconnect();
+
+        boolean result = super.logout();
+        pool.release(getZoo());
+        return result;
+    }
 }
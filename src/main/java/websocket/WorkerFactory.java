@@ -3,28 +3,103 @@ package websocket;
 import org.java_websocket.WebSocket;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
-import org.json.JSONObject;
 import org.apache.zookeeper.KeeperException;
+import com.company.ZooHelper;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 public class WorkerFactory extends WebSocketServer{
 
-    private final static int port = 48080;
+    // i.e. -Dgateway.port=48082 to run a second factory on the same host
+    private final static int port = Integer.getInteger("gateway.port", 48080);
+    private static final int STATS_INTERVAL_SECONDS = 10;
+    // i.e. -Dgateway.local=false to send the messages between the users of the factory through the queues as well
+    private static final boolean LOCAL_DELIVERY = Boolean.parseBoolean(System.getProperty("gateway.local", "true"));
     private int last_worker_port;
-    private HashMap<String, SocketConnectedWorker> workers_map;
+    protected SessionRegistry sessions;
+    protected ZooSessionPool session_pool;
+    protected HistoryStore history;
+    protected SessionExecutor executor;
+    private ScheduledExecutorService reporter;
+    // null when the factory does not route (the messages then all go through the ZooKeeper queues)
+    protected GatewayRegistry routes;
+    protected GatewayLink link;
 
 
     public WorkerFactory() throws IOException, InterruptedException {
+        this(0);
+    }
+
+    // pooled_sessions > 0 makes all the users share that many ZooKeeper sessions instead of opening one each
+    public WorkerFactory(int pooled_sessions) throws IOException, InterruptedException {
+        this(pooled_sessions, Boolean.parseBoolean(System.getProperty("gateway.routing", "true")));
+    }
+
+    /**
+     * @param pooled_sessions The ZooKeeper sessions shared by the users, 0 for one each.
+     * @param routed True to publish the users connected here and to send the messages to the users connected to other
+     *               factories directly (see {@link GatewayRegistry} and {@link GatewayLink}).
+     */
+    protected WorkerFactory(int pooled_sessions, boolean routed) throws IOException, InterruptedException {
         super(new InetSocketAddress(port));
         this.last_worker_port = port+1;
-        this.workers_map  = new HashMap<String, SocketConnectedWorker>();
+        this.sessions = new SessionRegistry();
+        this.session_pool = pooled_sessions > 0 ? new ZooSessionPool(pooled_sessions) : null;
+        // i.e. -Dhistory.dir=/var/lib/messaging/history
+        this.history = new HistoryStore(new File(System.getProperty("history.dir", "history")));
+        // the websocket callbacks only decode the frames: what blocks runs on the executor, in order for each connection
+        // i.e. -Dgateway.threads=64 (without virtual threads) -Dgateway.pending=10000
+        this.executor = new SessionExecutor(Integer.getInteger("gateway.threads", 64),
+                Integer.getInteger("gateway.pending", 10000));
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gateway-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reporter.scheduleAtFixedRate(() -> {
+            String report = executor.report();
+            if (report != null) System.out.println(report);
+        }, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        if (routed)
+            startRouting();
+    }
+
+    // i.e. -Dgateway.link.port=48100 -Dgateway.link.host=10.0.0.5 (the address the other factories connect to)
+    private void startRouting() throws IOException, InterruptedException {
+        this.link = new GatewayLink(Integer.getInteger("gateway.link.port", 0), System.getProperty("gateway.link.host"),
+                this::deliver_from_link);
+        try {
+            this.routes = new GatewayRegistry(ZooHelper.getConnection(), link.getAddress());
+        } catch (KeeperException e) {
+            link.close();
+            throw new IOException("Could not register the factory in ZooKeeper", e);
+        }
+        System.out.println("<INFO> Gateway " + routes.getId() + " linked on " + link.getAddress());
+    }
 
+    // A message sent by another factory: delivered after the work pending for the receiver's connection. Refused (the
+    // other factory sends it through the queue) while the inbox may still hold older messages of the sender, i.e. the
+    // offline messages restored at login, so that it cannot overtake them. A refused message is counted until it is
+    // read from the queue, so the later ones of the sender cannot overtake it either
+    private boolean deliver_from_link(String sender, String receiver, String text) {
+        SessionRegistry.Session session = sessions.byUserSession(receiver);
+        SocketConnectedWorker worker = session == null ? null : session.getWorker();
+        if (worker == null)
+            return false;
+        if (!worker.hasQueuedFrom(sender)
+                && executor.submit(session.getConnection(), "link", () -> worker.readDirect(sender, text)))
+            return true;
+        worker.expectQueued(sender);
+        return false;
     }
 
     @Override
@@ -35,73 +110,247 @@ public class WorkerFactory extends WebSocketServer{
     @Override
     public void onClose(WebSocket webSocket, int i, String s, boolean b) {
         System.out.println("Factory: Closed connection from:" + webSocket.getRemoteSocketAddress().toString());
-        SocketConnectedWorker worker = workers_map.remove(webSocket.getRemoteSocketAddress().toString());
-        worker.disconnect();
+        // no more messages are routed to the user, and it is disconnected after the work still pending for it (a user
+        // still logging in is disconnected by manage_registration)
+        SessionRegistry.Session session = sessions.remove(webSocket);
+        executor.submitLast(webSocket, "disconnect", () -> {
+            if (session != null && session.getWorker() != null) {
+                if (routes != null)
+                    routes.removeRoute(session.getUser());
+                session.getWorker().disconnect();
+            }
+        });
     }
 
 
     protected SocketConnectedWorker create_worker(String id, WebSocket websocket){
         SocketConnectedWorker new_worker = null;
         try {
-            new_worker = new SocketConnectedWorker(id, websocket);
+            if (session_pool != null)
+                new_worker = new SocketConnectedWorker(id, websocket, session_pool);
+            else
+                new_worker = new SocketConnectedWorker(id, websocket);
         } catch (Exception e) {
             e.printStackTrace();
         }
         return new_worker;
     }
 
-    private void manage_registration(WebSocket webSocket, JSONObject message){
-        JSONObject reply = new JSONObject();
-        if( message.get("username") == null || "".equals(message.get("username"))) {
-            reply.put("status", "error");
-            reply.put("additional_message", "invalid username");
-        }
-        else if(workers_map.containsKey(message.get("username"))){
-            reply.put("type", "error");
-            reply.put("additional_message", "username already online");
-        }
+    private void manage_registration(WebSocket webSocket, ChatProtocol protocol, String username){
+        String error = null;
+        SessionRegistry.Session session = null;
+        if(username == null || "".equals(username))
+            error = "invalid username";
+        else if((session = sessions.reserve(username, webSocket)) == null)
+            error = "username already online";
         else {
-            SocketConnectedWorker new_worker = create_worker(message.get("username").toString(),webSocket);
+            SocketConnectedWorker new_worker = create_worker(username, webSocket);
+
+            if (new_worker != null) {
+                new_worker.setHistory(history);
+                new_worker.setProtocol(protocol);
+                new_worker.setExecutor(executor);
+            }
 
             if (new_worker != null && new_worker.canEnroll() && new_worker.login()) {
-                reply.put("type", "registration");
-                reply.put("status","registered");
-                reply.put("additional_message", "new_worker.getAddress().split('/')[1]");
-                workers_map.put(webSocket.getRemoteSocketAddress().toString(), new_worker);
+                if (!sessions.attach(session, new_worker)) {
+                    // the connection was closed while logging in
+                    new_worker.disconnect();
+                    return;
+                }
+                new_worker.attached();
+                add_route(username);
             } else {
-                reply.put("type", "error");
-                reply.put("additional_message", "username already online");
+                sessions.remove(webSocket);
+                error = "username already online";
             }
-            webSocket.send(reply.toString()); //Sending back the reply
+        }
+        //Sending back the reply
+        if (error == null)
+            protocol.registered(webSocket);
+        else
+            protocol.error(webSocket, ChatFrameCodec.Frame.NO_NUMBER, null, error);
 
-            System.out.println("Received and process request of user \'" + message.get("username") +  "\' with reply" + reply);
+        System.out.println("Received and process request of user \'" + username +  "\' with reply " + (error == null ? "registered" : error));
+    }
+
+    // Without a route, the messages to the user go through its ZooKeeper queue
+    private void add_route(String username) {
+        if (routes == null)
+            return;
+        try {
+            routes.addRoute(username);
+        } catch (KeeperException | InterruptedException e) {
+            System.out.println("<WARNING> Could not route user " + username + ": " + e.getMessage());
+        }
+    }
+
+    // {type: "history", with: USER, before: TIMESTAMP (optional), limit: N (optional)} returns the last messages of the
+    // conversation with USER (before the given time), oldest first, and whether there are older ones
+    private void manage_history(WebSocket webSocket, ChatProtocol protocol, String with, long before, int limit){
+        SocketConnectedWorker worker = sessions.byConnection(webSocket);
+        if (worker == null) {
+            protocol.error(webSocket, ChatFrameCodec.Frame.NO_NUMBER, null, "not registered");
+            return;
         }
+
+        HistoryStore.Page page = history.before(worker.getId(), with, before, limit);
+        protocol.history(webSocket, worker.getId(), with, page.getEntries(), page.hasMore());
     }
 
+    // JSON frames (see ChatFrameCodec), no JSON objects are built and nothing is logged per message
     @Override
     public void onMessage(WebSocket webSocket, String data) {
-        JSONObject message = new JSONObject(data);
-        JSONObject reply = new JSONObject();
+        ChatFrameCodec.Frame message;
+        try {
+            message = ChatFrameCodec.decode(data);
+        } catch (IllegalArgumentException e) {
+            ChatProtocol.JSON.error(webSocket, ChatFrameCodec.Frame.NO_NUMBER, null, e.getMessage());
+            return;
+        }
+        handle(webSocket, ChatProtocol.JSON, message, data);
+    }
 
-        if(!message.has("type")) {
-            webSocket.send(reply.put("type", "error").put("additional_message", "no field type, rejected").toString());
+    // Binary frames (see BinaryFrameCodec): a client registered with a binary frame gets binary frames back
+    @Override
+    public void onMessage(WebSocket webSocket, ByteBuffer data) {
+        ChatFrameCodec.Frame message;
+        try {
+            message = BinaryFrameCodec.decode(data);
+        } catch (IllegalArgumentException e) {
+            ChatProtocol.BINARY.error(webSocket, ChatFrameCodec.Frame.NO_NUMBER, null, e.getMessage());
             return;
         }
-        if(message.getString("type").equals("registration"))
-            manage_registration(webSocket, message);
-        else if("chat".equals(message.getString("type")) && message.has("dest") && message.has("sender") && message.has("msg")){
-            if(workers_map.get(webSocket.getRemoteSocketAddress().toString()).writeWithAnswer(message.getString("dest"), message.getString("msg")))
-                reply.put("type","confirmation");
-            else
-                reply.put("type","error");
-            reply.put("additional_message", message.toString());
+        handle(webSocket, ChatProtocol.BINARY, message, null);
+    }
+
+    // Runs on the websocket callback thread: the fields needed are copied out of the frame (it is reused by the thread)
+    // and the work is queued on the executor
+    private void handle(WebSocket webSocket, ChatProtocol protocol, ChatFrameCodec.Frame message, String data) {
+
+        if(message.type == null) {
+            protocol.error(webSocket, message.id, null, "no field type, rejected");
+            return;
+        }
+        long id = message.id;
+        boolean accepted;
+        if(message.type.equals("registration")) {
+            String username = message.username;
+            accepted = executor.submit(webSocket, "registration", () -> manage_registration(webSocket, protocol, username));
+        }
+        else if("chat".equals(message.type) && message.dest != null && message.msg != null
+                && (message.sender != null || protocol == ChatProtocol.BINARY)){
+            String dest = message.dest;
+            String msg = message.msg;
+            accepted = executor.submit(webSocket, "chat", () -> manage_chat(webSocket, protocol, id, data, dest, msg));
+        }
+        else if("history".equals(message.type) && message.with != null) {
+            String with = message.with;
+            long before = message.before == ChatFrameCodec.Frame.NO_NUMBER ? Long.MAX_VALUE : message.before;
+            int limit = message.limit == ChatFrameCodec.Frame.NO_NUMBER ? HistoryStore.DEFAULT_PAGE_SIZE
+                    : (int) Math.max(0, Math.min(message.limit, HistoryStore.MAX_PAGE_SIZE));
+            accepted = executor.submit(webSocket, "history", () -> manage_history(webSocket, protocol, with, before, limit));
         }
         else {
-            reply.put("type", "error").put("additional_message", "no required field, message was rejected");
+            protocol.error(webSocket, id, null, "no required field, message was rejected");
+            return;
+        }
+
+        if (!accepted)
+            protocol.error(webSocket, id, data, "server busy, try again later");
+    }
+
+    private void manage_chat(WebSocket webSocket, ChatProtocol protocol, long id, String data, String dest, String msg) {
+        SocketConnectedWorker worker = sessions.byConnection(webSocket);
+        if (worker == null) {
+            protocol.error(webSocket, id, null, "not registered");
+            return;
+        }
+        SessionRegistry.Session local = LOCAL_DELIVERY ? sessions.byUserSession(dest) : null;
+        SocketConnectedWorker receiver = local == null ? null : local.getWorker();
+        if (receiver != null) {
+            if (!receiver.hasQueuedFrom(worker.getId()) && deliver_local(worker, webSocket, protocol, id, data, local, receiver, msg))
+                return;
+            send_queued(worker, webSocket, protocol, id, data, dest, msg, receiver);
+            return;
+        }
+        InetSocketAddress gateway = remote_gateway(dest);
+        if (gateway != null) {
+            // straight to the factory of the receiver, through the queue if it is no longer there or was never reached
+            link.send(gateway, worker.getId(), dest, msg)
+                    .whenComplete((delivered, error) -> {
+                        if (error == null && delivered) {
+                            if (webSocket.isOpen())
+                                protocol.confirmation(webSocket, id, data);
+                        } else if (error instanceof GatewayLink.UnconfirmedException) {
+                            // it may have been delivered: sending it again through the queue could duplicate it
+                            if (webSocket.isOpen())
+                                protocol.error(webSocket, id, data, "message not confirmed");
+                        } else {
+                            send_queued(worker, webSocket, protocol, id, data, dest, msg, null);
+                        }
+                    });
             return;
         }
-        webSocket.send(reply.toString());
-        System.out.println("Received and processed request properly. Data:" +message.toString());
+        send_queued(worker, webSocket, protocol, id, data, dest, msg, null);
+    }
+
+    /**
+     * Hands a message to a receiver logged in on this factory: it is delivered by the executor of the receiver's
+     * connection, after the work pending for it, and the ZooKeeper queue is not involved.
+     * @return False if the receiver's connection is closing or too busy: the message must go through the queue.
+     */
+    private boolean deliver_local(SocketConnectedWorker worker, WebSocket webSocket, ChatProtocol protocol, long id,
+                                  String data, SessionRegistry.Session local, SocketConnectedWorker receiver, String msg) {
+        WebSocket connection = local.getConnection();
+        if (!connection.isOpen())
+            return false;
+        return executor.submit(connection, "local", () -> {
+            if (connection.isOpen() && sessions.byConnection(connection) == receiver) {
+                receiver.readDirect(worker.getId(), msg);
+                if (webSocket.isOpen())
+                    protocol.confirmation(webSocket, id, data);
+            } else {
+                // closed meanwhile: the messages sent directly after this one follow it in the queue (same executor)
+                send_queued(worker, webSocket, protocol, id, data, receiver.getId(), msg, null);
+            }
+        });
+    }
+
+    // The link of the other factory the receiver is connected to, or null to use the ZooKeeper queue
+    private InetSocketAddress remote_gateway(String dest) {
+        if (routes == null)
+            return null;
+        try {
+            String gateway = routes.lookup(dest);
+            if (gateway == null || gateway.equals(routes.getId()))
+                return null;
+            return routes.address(gateway);
+        } catch (KeeperException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // receiver: the worker of the receiver if it is logged in on this factory (it then counts the message until read)
+    private void send_queued(SocketConnectedWorker worker, WebSocket webSocket, ChatProtocol protocol, long id,
+                             String data, String dest, String msg, SocketConnectedWorker receiver) {
+        if (receiver != null)
+            receiver.expectQueued(worker.getId());
+        // the reply is sent by the callback once the message is stored, this thread does not wait for it
+        worker.writeAsync(dest, msg)
+                .whenComplete((node, error) -> {
+                    if (error != null && receiver != null)
+                        receiver.cancelQueued(worker.getId());
+                    if (!webSocket.isOpen())
+                        return;
+                    if (error == null)
+                        protocol.confirmation(webSocket, id, data);
+                    else
+                        protocol.error(webSocket, id, data, "message not sent");
+                });
     }
 
     @Override
@@ -113,7 +362,12 @@ public class WorkerFactory extends WebSocketServer{
 
     public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
 
-       final WorkerFactory factory = new WorkerFactory();
+       // i.e. -Dzk.sessions=4 to share 4 ZooKeeper sessions among all the users
+       serve(new WorkerFactory(Integer.getInteger("zk.sessions", 0)));
+   }
+
+    // Runs a factory until a new line is entered
+    protected static void serve(WorkerFactory factory) throws IOException, InterruptedException {
 
        System.out.println("Stating");
 
@@ -127,8 +381,22 @@ public class WorkerFactory extends WebSocketServer{
        input.nextLine();
 
        factory.stop();
+       factory.shutdown();
 
        System.out.println("Ending");
 
    }
+
+    // Releases what the factory shares among its users, once the server is stopped
+    protected void shutdown() {
+        reporter.shutdownNow();
+        if (link != null) {
+            link.close();
+            System.out.println(link.report());
+        }
+        executor.shutdown();
+        if (session_pool != null)
+            session_pool.close();
+        history.close();
+    }
 }
@@ -0,0 +1,74 @@
+package websocket;
+
+import com.company.ZooHelper;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+
+/**
+ * A small set of ZooKeeper sessions shared by the users of a gateway.
+ * Each user is given the least loaded session when it connects and gives it back when it leaves: its ephemeral node in
+ * "/online" and its watchers belong to that session, so leaving must go through {@link com.company.Worker#logout()}
+ * and never close the session. A session that expired is replaced by a new one the next time it would be handed out.
+ */
+public class ZooSessionPool {
+
+    private final ZooKeeper[] sessions;
+    private final int[] users;
+
+    public ZooSessionPool(int size) {
+        this.sessions = new ZooKeeper[size];
+        this.users = new int[size];
+    }
+
+    public int size() {
+        return sessions.length;
+    }
+
+    /**
+     * @param id The id of the user that needs a session.
+     * @return The session the user has been assigned to.
+     * @throws IOException -
+     * @throws InterruptedException -
+     */
+    public synchronized ZooKeeper acquire(String id) throws IOException, InterruptedException {
+
+        int chosen = 0;
+        for (int i = 1; i < sessions.length; i++)
+            if (users[i] < users[chosen]) chosen = i;
+
+        if (sessions[chosen] == null || !sessions[chosen].getState().isAlive()) {
+            if (sessions[chosen] != null)
+                System.out.println("<WARNING> Pooled ZooKeeper session " + chosen + " expired, opening a new one.");
+            sessions[chosen] = ZooHelper.getConnection();
+            users[chosen] = 0;
+        }
+
+        users[chosen]++;
+        return sessions[chosen];
+    }
+
+    /**
+     * @param session A session returned by {@link #acquire(String)} that the user does not need anymore.
+     */
+    public synchronized void release(ZooKeeper session) {
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] == session) {
+                users[i] = Math.max(0, users[i] - 1);
+                return;
+            }
+        }
+    }
+
+    public synchronized void close() {
+        for (int i = 0; i < sessions.length; i++) {
+            try {
+                if (sessions[i] != null) sessions[i].close();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            sessions[i] = null;
+            users[i] = 0;
+        }
+    }
+}